@@ -16,16 +16,33 @@
 package com.logicalclocks.servicediscoverclient;
 
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.resolvers.AddressFamily;
 import com.logicalclocks.servicediscoverclient.resolvers.CachingResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.CatalogMirrorResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.CircuitBreakerResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.Consistency;
+import com.logicalclocks.servicediscoverclient.resolvers.DatacenterFanOut;
 import com.logicalclocks.servicediscoverclient.resolvers.DnsResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.FailoverResolver;
 import com.logicalclocks.servicediscoverclient.resolvers.HttpResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.MultiDatacenterResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.OutlierDetectionResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.SharedCacheResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.SubsettingResolver;
 import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.tracing.Tracer;
 import com.orbitz.consul.Consul;
+import okhttp3.ConnectionPool;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class Builder {
@@ -34,18 +51,86 @@ public class Builder {
   // For HTTP
   private String httpHost = "localhost";
   private Integer httpPort = 8500;
+  private Boolean httpAddressSet = false;
   private Boolean https = false;
   private SSLContext sslContext;
   private HostnameVerifier hostnameVerifier;
   private Consul client;
+  private Boolean sharedClient = false;
+  private Duration httpConnectTimeout = null;
+  private Duration httpReadTimeout = null;
+  private Duration httpWriteTimeout = null;
+  private Integer httpMaxIdleConnections = null;
+  private Duration httpKeepAliveDuration = null;
+  private ConnectionPool httpConnectionPool = null;
+  private Boolean httpLightweightParsing = false;
+  private Boolean httpStreamingResponses = false;
+  private Consistency httpConsistency = Consistency.DEFAULT;
+  private Duration httpCacheMaxAge = null;
+  private Duration httpCacheStaleIfError = null;
+  private String httpNear = null;
+  private String zoneMetaKey = "zone";
   
   // For DNS
   private String dnsHost = null;
   private Integer dnsPort = null;
+  private AddressFamily dnsAddressFamily = AddressFamily.IPV4_ONLY;
+  private Integer dnsPrefetchTargets = 0;
+  private Boolean dnsWireParsing = false;
+  private Duration dnsTimeout = Duration.of(4, ChronoUnit.SECONDS);
 
   // For caching
   private ServiceDiscoveryClient serviceDiscoveryClient;
   private Duration cacheExpiration = Duration.of(1, ChronoUnit.MINUTES);
+  private Boolean cacheTagIndex = false;
+  private Duration cacheMinExpiration = null;
+  private Duration cacheMaxExpiration = null;
+
+  // For circuit breaker
+  private int circuitBreakerWindowSize = 20;
+  private int circuitBreakerMinimumCalls = 10;
+  private float circuitBreakerFailureRateThreshold = 0.5f;
+  private Duration circuitBreakerSlowCallThreshold = Duration.of(2, ChronoUnit.SECONDS);
+  private float circuitBreakerSlowCallRateThreshold = 1.0f;
+  private Duration circuitBreakerOpenDuration = Duration.of(30, ChronoUnit.SECONDS);
+  private int circuitBreakerHalfOpenCalls = 3;
+  private boolean circuitBreakerFallbackToLastKnown = false;
+
+  // For failover
+  private List<ServiceDiscoveryClient> serviceDiscoveryClients;
+  private Duration hedgingDelay = null;
+  
+  // For outlier detection
+  private int outlierConsecutiveFailures = 5;
+  private int outlierMinimumRequests = 10;
+  private float outlierLatencyFactor = 3.0f;
+  private Duration outlierBaseEjectionDuration = Duration.of(30, ChronoUnit.SECONDS);
+  private Duration outlierMaxEjectionDuration = Duration.of(5, ChronoUnit.MINUTES);
+  private float outlierMaxEjectionPercent = 0.5f;
+  
+  // For subsetting
+  private String subsetClientId = null;
+  private int subsetSize = 10;
+  
+  // For catalog mirror
+  private Duration catalogMirrorWait = Duration.of(5, ChronoUnit.SECONDS);
+  private Duration catalogMirrorResyncInterval = Duration.of(5, ChronoUnit.MINUTES);
+  private int catalogMirrorConcurrency = 4;
+  
+  // For shared cache
+  private Path sharedCachePath = null;
+  private int sharedCacheSlots = 1024;
+  private int sharedCacheSlotSize = 4096;
+  
+  // For multi datacenter
+  private List<String> datacenters = null;
+  private DatacenterFanOut datacenterFanOut = DatacenterFanOut.NEAREST;
+  
+  // For background work of the resolvers
+  private Boolean virtualThreads = false;
+  
+  // For tracing
+  private Tracer tracer = Tracer.noop();
   
   public Builder(Type resolverType) {
     this.resolverType = resolverType;
@@ -53,11 +138,13 @@ public class Builder {
   
   public Builder withHttpHost(String httpHost) {
     this.httpHost = httpHost;
+    this.httpAddressSet = true;
     return this;
   }
   
   public Builder withHttpPort(Integer httpPort) {
     this.httpPort = httpPort;
+    this.httpAddressSet = true;
     return this;
   }
   
@@ -76,8 +163,131 @@ public class Builder {
     return this;
   }
   
+  /**
+   * Use this Consul client instead of building one from the HTTP settings. consul-client does not expose the
+   * address of the agent, so filter expressions, prepared queries and {@link #withHttpLightweightParsing()},
+   * which bypass the client, need it again with {@link #withHttpHost(String)} and
+   * {@link #withHttpPort(Integer)}.
+   */
   public Builder withClient(Consul client) {
     this.client = client;
+    this.sharedClient = false;
+    return this;
+  }
+  
+  /**
+   * Use a Consul client which is shared with other resolvers. Unlike {@link #withClient(Consul)} the client
+   * is not destroyed when the resolver is closed, its owner is responsible for that. See
+   * {@link #withClient(Consul)} for the queries which also need the address of the agent.
+   */
+  public Builder withSharedClient(Consul client) {
+    this.client = client;
+    this.sharedClient = true;
+    return this;
+  }
+  
+  public Builder withHttpConnectTimeout(Duration httpConnectTimeout) {
+    this.httpConnectTimeout = httpConnectTimeout;
+    return this;
+  }
+  
+  public Builder withHttpReadTimeout(Duration httpReadTimeout) {
+    this.httpReadTimeout = httpReadTimeout;
+    return this;
+  }
+  
+  public Builder withHttpWriteTimeout(Duration httpWriteTimeout) {
+    this.httpWriteTimeout = httpWriteTimeout;
+    return this;
+  }
+  
+  /**
+   * Size the connection pool of the Consul client. Ignored if a pool is set with
+   * {@link #withHttpConnectionPool(ConnectionPool)}
+   */
+  public Builder withHttpMaxIdleConnections(Integer httpMaxIdleConnections) {
+    this.httpMaxIdleConnections = httpMaxIdleConnections;
+    return this;
+  }
+  
+  /**
+   * How long idle connections are kept alive in the connection pool of the Consul client. Ignored if a pool is
+   * set with {@link #withHttpConnectionPool(ConnectionPool)}
+   */
+  public Builder withHttpKeepAliveDuration(Duration httpKeepAliveDuration) {
+    this.httpKeepAliveDuration = httpKeepAliveDuration;
+    return this;
+  }
+  
+  /**
+   * Connection pool shared by the Consul clients of several resolvers. Its connections are not evicted when a
+   * resolver is closed, its owner is responsible for that.
+   */
+  public Builder withHttpConnectionPool(ConnectionPool httpConnectionPool) {
+    this.httpConnectionPool = httpConnectionPool;
+    return this;
+  }
+  
+  /**
+   * Parse Consul responses with a streaming parser which only reads the fields needed for
+   * {@link com.logicalclocks.servicediscoverclient.service.Service} instead of deserializing them with
+   * consul-client. Queries with a filter expression always use this path. The
+   * {@link com.logicalclocks.servicediscoverclient.service.ServiceDetails} are the same as with consul-client:
+   * the ID, tags and metadata of the instance and the tagged addresses and datacenter of its node.
+   */
+  public Builder withHttpLightweightParsing() {
+    this.httpLightweightParsing = true;
+    return this;
+  }
+  
+  /**
+   * Like {@link #withHttpLightweightParsing()} but services are parsed from the Consul response as the
+   * returned Stream is consumed. The HTTP response is released when the Stream is exhausted, so callers which
+   * do not consume the whole Stream, for example with {@code findFirst}, must close it.
+   */
+  public Builder withHttpStreamingResponses() {
+    this.httpStreamingResponses = true;
+    return this;
+  }
+  
+  public Builder withHttpConsistency(Consistency httpConsistency) {
+    this.httpConsistency = httpConsistency;
+    return this;
+  }
+  
+  /**
+   * Maximum age of a response served from the agent cache with {@link Consistency#CACHED}. Older entries are
+   * refreshed before answering.
+   */
+  public Builder withHttpCacheMaxAge(Duration httpCacheMaxAge) {
+    this.httpCacheMaxAge = httpCacheMaxAge;
+    return this;
+  }
+  
+  /**
+   * How long the agent may keep serving a cached response with {@link Consistency#CACHED} when it cannot
+   * reach the servers
+   */
+  public Builder withHttpCacheStaleIfError(Duration httpCacheStaleIfError) {
+    this.httpCacheStaleIfError = httpCacheStaleIfError;
+    return this;
+  }
+  
+  /**
+   * Sort instances by estimated round trip time from this node for queries which do not set one. Use
+   * {@code _agent} for the node of the local Consul agent.
+   */
+  public Builder withHttpNear(String httpNear) {
+    this.httpNear = httpNear;
+    return this;
+  }
+  
+  /**
+   * Node metadata key holding the zone of a node, used with
+   * {@link com.logicalclocks.servicediscoverclient.service.ServiceQuery#getPreferredZone()}
+   */
+  public Builder withZoneMetaKey(String zoneMetaKey) {
+    this.zoneMetaKey = zoneMetaKey;
     return this;
   }
   
@@ -90,7 +300,43 @@ public class Builder {
     this.dnsPort = dnsPort;
     return this;
   }
+  
+  /**
+   * Address families to resolve SRV targets to. With both families the A and AAAA lookups of a target are
+   * issued in parallel. Default is {@link AddressFamily#IPV4_ONLY}
+   */
+  public Builder withDnsAddressFamily(AddressFamily dnsAddressFamily) {
+    this.dnsAddressFamily = dnsAddressFamily;
+    return this;
+  }
 
+  /**
+   * Number of SRV targets to resolve in the background ahead of the one being consumed from the returned
+   * stream. Default is 0, every target is resolved only when it is consumed
+   */
+  public Builder withDnsPrefetchTargets(Integer dnsPrefetchTargets) {
+    this.dnsPrefetchTargets = dnsPrefetchTargets;
+    return this;
+  }
+  
+  /**
+   * Read the services straight from the SRV response, with the addresses of the targets from its additional
+   * section, falling back to separate lookups when the response does not have them
+   */
+  public Builder withDnsWireParsing() {
+    this.dnsWireParsing = true;
+    return this;
+  }
+  
+  /**
+   * Time to wait for the answer of a nameserver, both the configured one and the system's nameservers it falls
+   * back to. Default is 4 seconds
+   */
+  public Builder withDnsTimeout(Duration dnsTimeout) {
+    this.dnsTimeout = dnsTimeout;
+    return this;
+  }
+  
   public Builder withServiceDiscoveryClient(ServiceDiscoveryClient serviceDiscoveryClient) {
     this.serviceDiscoveryClient = serviceDiscoveryClient;
     return this;
@@ -101,6 +347,215 @@ public class Builder {
     return this;
   }
   
+  /**
+   * Cache the full instance set of a service once and answer tag subset queries from a local tag index
+   */
+  public Builder withCacheTagIndex() {
+    this.cacheTagIndex = true;
+    return this;
+  }
+  
+  /**
+   * Adapt the expiration of every cached answer to how often its instance set changes, between the bounds.
+   * The cache expiration is the initial expiration
+   */
+  public Builder withAdaptiveCacheExpiration(Duration cacheMinExpiration, Duration cacheMaxExpiration) {
+    this.cacheMinExpiration = cacheMinExpiration;
+    this.cacheMaxExpiration = cacheMaxExpiration;
+    return this;
+  }
+  
+  public Builder withCircuitBreakerWindowSize(int circuitBreakerWindowSize) {
+    this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+    return this;
+  }
+
+  public Builder withCircuitBreakerMinimumCalls(int circuitBreakerMinimumCalls) {
+    this.circuitBreakerMinimumCalls = circuitBreakerMinimumCalls;
+    return this;
+  }
+
+  public Builder withCircuitBreakerFailureRateThreshold(float circuitBreakerFailureRateThreshold) {
+    this.circuitBreakerFailureRateThreshold = circuitBreakerFailureRateThreshold;
+    return this;
+  }
+
+  public Builder withCircuitBreakerSlowCallThreshold(Duration circuitBreakerSlowCallThreshold) {
+    this.circuitBreakerSlowCallThreshold = circuitBreakerSlowCallThreshold;
+    return this;
+  }
+
+  public Builder withCircuitBreakerSlowCallRateThreshold(float circuitBreakerSlowCallRateThreshold) {
+    this.circuitBreakerSlowCallRateThreshold = circuitBreakerSlowCallRateThreshold;
+    return this;
+  }
+
+  public Builder withCircuitBreakerOpenDuration(Duration circuitBreakerOpenDuration) {
+    this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    return this;
+  }
+
+  public Builder withCircuitBreakerHalfOpenCalls(int circuitBreakerHalfOpenCalls) {
+    this.circuitBreakerHalfOpenCalls = circuitBreakerHalfOpenCalls;
+    return this;
+  }
+
+  public Builder withCircuitBreakerFallbackToLastKnown() {
+    this.circuitBreakerFallbackToLastKnown = true;
+    return this;
+  }
+  
+  public Builder withServiceDiscoveryClients(List<ServiceDiscoveryClient> serviceDiscoveryClients) {
+    this.serviceDiscoveryClients = serviceDiscoveryClients;
+    return this;
+  }
+
+  public Builder withHedgingDelay(Duration hedgingDelay) {
+    this.hedgingDelay = hedgingDelay;
+    return this;
+  }
+  
+  /**
+   * Number of consecutive failures reported for an instance after which it is ejected
+   */
+  public Builder withOutlierConsecutiveFailures(int outlierConsecutiveFailures) {
+    this.outlierConsecutiveFailures = outlierConsecutiveFailures;
+    return this;
+  }
+  
+  /**
+   * Number of successful calls reported for an instance before its latency is compared with the other instances
+   */
+  public Builder withOutlierMinimumRequests(int outlierMinimumRequests) {
+    this.outlierMinimumRequests = outlierMinimumRequests;
+    return this;
+  }
+  
+  /**
+   * An instance is ejected when its average latency is more than this factor of the median latency of the
+   * instances of the answer. Zero disables latency based ejection
+   */
+  public Builder withOutlierLatencyFactor(float outlierLatencyFactor) {
+    this.outlierLatencyFactor = outlierLatencyFactor;
+    return this;
+  }
+  
+  /**
+   * Ejection duration, multiplied by the number of times the instance has been ejected
+   */
+  public Builder withOutlierBaseEjectionDuration(Duration outlierBaseEjectionDuration) {
+    this.outlierBaseEjectionDuration = outlierBaseEjectionDuration;
+    return this;
+  }
+  
+  public Builder withOutlierMaxEjectionDuration(Duration outlierMaxEjectionDuration) {
+    this.outlierMaxEjectionDuration = outlierMaxEjectionDuration;
+    return this;
+  }
+  
+  /**
+   * Maximum fraction of the instances of an answer which are left out because they are ejected
+   */
+  public Builder withOutlierMaxEjectionPercent(float outlierMaxEjectionPercent) {
+    this.outlierMaxEjectionPercent = outlierMaxEjectionPercent;
+    return this;
+  }
+  
+  /**
+   * Identifier of this client seeding its subset, stable across restarts. Default is the local host name
+   */
+  public Builder withSubsetClientId(String subsetClientId) {
+    this.subsetClientId = subsetClientId;
+    return this;
+  }
+  
+  public Builder withSubsetSize(int subsetSize) {
+    this.subsetSize = subsetSize;
+    return this;
+  }
+  
+  /**
+   * Maximum duration of the blocking queries watching the catalog. Must be shorter than the HTTP read timeout,
+   * 10 seconds unless configured otherwise, with room for the up to 1/16 of jitter Consul adds
+   */
+  public Builder withCatalogMirrorWait(Duration catalogMirrorWait) {
+    this.catalogMirrorWait = catalogMirrorWait;
+    return this;
+  }
+  
+  /**
+   * Interval between reloads of all the mirrored services, catching changes which do not show in the watched
+   * catalog, such as the address of an instance without health checks
+   */
+  public Builder withCatalogMirrorResyncInterval(Duration catalogMirrorResyncInterval) {
+    this.catalogMirrorResyncInterval = catalogMirrorResyncInterval;
+    return this;
+  }
+  
+  /**
+   * Maximum number of services loaded concurrently when the catalog changes
+   */
+  public Builder withCatalogMirrorConcurrency(int catalogMirrorConcurrency) {
+    this.catalogMirrorConcurrency = catalogMirrorConcurrency;
+    return this;
+  }
+  
+  /**
+   * File shared by the processes of the host caching the answers, created if it does not exist
+   */
+  public Builder withSharedCachePath(Path sharedCachePath) {
+    this.sharedCachePath = sharedCachePath;
+    return this;
+  }
+  
+  /**
+   * Number of answers the shared cache file holds. Only used when the file is created
+   */
+  public Builder withSharedCacheSlots(int sharedCacheSlots) {
+    this.sharedCacheSlots = sharedCacheSlots;
+    return this;
+  }
+  
+  /**
+   * Size in bytes of an answer in the shared cache file, larger answers are not shared. Only used when the
+   * file is created
+   */
+  public Builder withSharedCacheSlotSize(int sharedCacheSlotSize) {
+    this.sharedCacheSlotSize = sharedCacheSlotSize;
+    return this;
+  }
+  
+  /**
+   * Datacenters queried in parallel, in order of preference. Default is all the datacenters known to Consul,
+   * nearest first
+   */
+  public Builder withDatacenters(List<String> datacenters) {
+    this.datacenters = datacenters;
+    return this;
+  }
+  
+  public Builder withDatacenterFanOut(DatacenterFanOut datacenterFanOut) {
+    this.datacenterFanOut = datacenterFanOut;
+    return this;
+  }
+  
+  /**
+   * Run the background work of the resolvers, parallel DNS lookups and hedged requests, on a new virtual
+   * thread per task. Requires JDK 21 or later, platform threads are used otherwise
+   */
+  public Builder withVirtualThreads() {
+    this.virtualThreads = true;
+    return this;
+  }
+  
+  /**
+   * Report the stages of the lookups to tracer, see {@link Tracer}. Default is a tracer doing nothing
+   */
+  public Builder withTracer(Tracer tracer) {
+    this.tracer = tracer;
+    return this;
+  }
+  
   public String getHttpHost() {
     return httpHost;
   }
@@ -109,6 +564,10 @@ public class Builder {
     return httpPort;
   }
   
+  public Boolean getHttpAddressSet() {
+    return httpAddressSet;
+  }
+  
   public Boolean getHttps() {
     return https;
   }
@@ -125,6 +584,62 @@ public class Builder {
     return client;
   }
   
+  public Boolean getSharedClient() {
+    return sharedClient;
+  }
+  
+  public Duration getHttpConnectTimeout() {
+    return httpConnectTimeout;
+  }
+  
+  public Duration getHttpReadTimeout() {
+    return httpReadTimeout;
+  }
+  
+  public Duration getHttpWriteTimeout() {
+    return httpWriteTimeout;
+  }
+  
+  public Integer getHttpMaxIdleConnections() {
+    return httpMaxIdleConnections;
+  }
+  
+  public Duration getHttpKeepAliveDuration() {
+    return httpKeepAliveDuration;
+  }
+  
+  public ConnectionPool getHttpConnectionPool() {
+    return httpConnectionPool;
+  }
+  
+  public Boolean getHttpLightweightParsing() {
+    return httpLightweightParsing;
+  }
+  
+  public Boolean getHttpStreamingResponses() {
+    return httpStreamingResponses;
+  }
+  
+  public Consistency getHttpConsistency() {
+    return httpConsistency;
+  }
+  
+  public Duration getHttpCacheMaxAge() {
+    return httpCacheMaxAge;
+  }
+  
+  public Duration getHttpCacheStaleIfError() {
+    return httpCacheStaleIfError;
+  }
+  
+  public String getHttpNear() {
+    return httpNear;
+  }
+  
+  public String getZoneMetaKey() {
+    return zoneMetaKey;
+  }
+  
   public String getDnsHost() {
     return dnsHost;
   }
@@ -132,6 +647,22 @@ public class Builder {
   public Integer getDnsPort() {
     return dnsPort;
   }
+  
+  public AddressFamily getDnsAddressFamily() {
+    return dnsAddressFamily;
+  }
+  
+  public Integer getDnsPrefetchTargets() {
+    return dnsPrefetchTargets;
+  }
+  
+  public Boolean getDnsWireParsing() {
+    return dnsWireParsing;
+  }
+  
+  public Duration getDnsTimeout() {
+    return dnsTimeout;
+  }
 
   public ServiceDiscoveryClient getServiceDiscoveryClient() {
     return serviceDiscoveryClient;
@@ -141,6 +672,159 @@ public class Builder {
     return cacheExpiration;
   }
   
+  public Boolean getCacheTagIndex() {
+    return cacheTagIndex;
+  }
+  
+  public Duration getCacheMinExpiration() {
+    return cacheMinExpiration;
+  }
+  
+  public Duration getCacheMaxExpiration() {
+    return cacheMaxExpiration;
+  }
+
+  public int getCircuitBreakerWindowSize() {
+    return circuitBreakerWindowSize;
+  }
+
+  public int getCircuitBreakerMinimumCalls() {
+    return circuitBreakerMinimumCalls;
+  }
+
+  public float getCircuitBreakerFailureRateThreshold() {
+    return circuitBreakerFailureRateThreshold;
+  }
+
+  public Duration getCircuitBreakerSlowCallThreshold() {
+    return circuitBreakerSlowCallThreshold;
+  }
+
+  public float getCircuitBreakerSlowCallRateThreshold() {
+    return circuitBreakerSlowCallRateThreshold;
+  }
+
+  public Duration getCircuitBreakerOpenDuration() {
+    return circuitBreakerOpenDuration;
+  }
+
+  public int getCircuitBreakerHalfOpenCalls() {
+    return circuitBreakerHalfOpenCalls;
+  }
+
+  public boolean getCircuitBreakerFallbackToLastKnown() {
+    return circuitBreakerFallbackToLastKnown;
+  }
+
+  public List<ServiceDiscoveryClient> getServiceDiscoveryClients() {
+    return serviceDiscoveryClients;
+  }
+
+  public Duration getHedgingDelay() {
+    return hedgingDelay;
+  }
+  
+  public int getOutlierConsecutiveFailures() {
+    return outlierConsecutiveFailures;
+  }
+  
+  public int getOutlierMinimumRequests() {
+    return outlierMinimumRequests;
+  }
+  
+  public float getOutlierLatencyFactor() {
+    return outlierLatencyFactor;
+  }
+  
+  public Duration getOutlierBaseEjectionDuration() {
+    return outlierBaseEjectionDuration;
+  }
+  
+  public Duration getOutlierMaxEjectionDuration() {
+    return outlierMaxEjectionDuration;
+  }
+  
+  public float getOutlierMaxEjectionPercent() {
+    return outlierMaxEjectionPercent;
+  }
+  
+  public String getSubsetClientId() {
+    return subsetClientId;
+  }
+  
+  public int getSubsetSize() {
+    return subsetSize;
+  }
+  
+  public Duration getCatalogMirrorWait() {
+    return catalogMirrorWait;
+  }
+  
+  public Duration getCatalogMirrorResyncInterval() {
+    return catalogMirrorResyncInterval;
+  }
+  
+  public int getCatalogMirrorConcurrency() {
+    return catalogMirrorConcurrency;
+  }
+  
+  public Path getSharedCachePath() {
+    return sharedCachePath;
+  }
+  
+  public int getSharedCacheSlots() {
+    return sharedCacheSlots;
+  }
+  
+  public int getSharedCacheSlotSize() {
+    return sharedCacheSlotSize;
+  }
+  
+  public List<String> getDatacenters() {
+    return datacenters;
+  }
+  
+  public DatacenterFanOut getDatacenterFanOut() {
+    return datacenterFanOut;
+  }
+  
+  public Boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+  
+  public Tracer getTracer() {
+    return tracer;
+  }
+  
+  /**
+   * Resolver shared with the other users of {@link ResolverRegistry#getDefault()} building it with an equal
+   * configuration. Closing it releases this user's reference
+   */
+  public SharedResolver buildShared() throws ServiceDiscoveryException {
+    return ResolverRegistry.getDefault().acquire(this);
+  }
+  
+  /**
+   * Values of all the options, read reflectively so that new options are part of it without changes here.
+   * Values without equals, such as clients, SSL contexts and tracers, are compared by identity
+   */
+  List<Object> getConfigurationKey() {
+    List<Object> key = new ArrayList<>();
+    for (Field field : Builder.class.getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+        continue;
+      }
+      try {
+        Object value = field.get(this);
+        // Copied so that changes to the builder's lists do not change the key
+        key.add(value instanceof List ? new ArrayList<>((List<?>) value) : value);
+      } catch (IllegalAccessException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+    return key;
+  }
+  
   public ServiceDiscoveryClient build() throws ServiceDiscoveryException  {
     ServiceDiscoveryClient client;
     switch (resolverType) {
@@ -153,6 +837,27 @@ public class Builder {
       case CACHING:
         client = new CachingResolver();
         break;
+      case CIRCUIT_BREAKER:
+        client = new CircuitBreakerResolver();
+        break;
+      case FAILOVER:
+        client = new FailoverResolver();
+        break;
+      case OUTLIER_DETECTION:
+        client = new OutlierDetectionResolver();
+        break;
+      case SUBSETTING:
+        client = new SubsettingResolver();
+        break;
+      case CATALOG_MIRROR:
+        client = new CatalogMirrorResolver();
+        break;
+      case SHARED_CACHE:
+        client = new SharedCacheResolver();
+        break;
+      case MULTI_DATACENTER:
+        client = new MultiDatacenterResolver();
+        break;
       default:
         throw new RuntimeException("Unknown service discovery resolver type: " + resolverType);
     }
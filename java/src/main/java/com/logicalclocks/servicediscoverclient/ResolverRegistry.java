@@ -0,0 +1,114 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient;
+
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import lombok.NonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registry of resolvers shared by the components of an application, so that components building equal
+ * resolvers share one Consul client, DNS resolver and cache instead of creating their own threads, sockets and
+ * caches.
+ *
+ * Resolvers are keyed by the configuration of their {@link Builder}. The first user acquiring a configuration
+ * builds the resolver, the next ones get the same instance, and it is closed when the last user releases it by
+ * closing its {@link SharedResolver}. A configuration built again after that gets a new resolver.
+ */
+public class ResolverRegistry {
+  private static final ResolverRegistry DEFAULT = new ResolverRegistry();
+
+  private final Map<List<Object>, Entry> entries = new HashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+
+  public ResolverRegistry() {
+  }
+
+  /**
+   * @return Registry shared by the whole process, used by {@link Builder#buildShared()}
+   */
+  public static ResolverRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return Reference to the resolver built by builder, or an equal builder, which must be closed when no longer
+   * used
+   */
+  public SharedResolver acquire(@NonNull Builder builder) throws ServiceDiscoveryException {
+    List<Object> key = builder.getConfigurationKey();
+    Entry entry;
+    lock.lock();
+    try {
+      entry = entries.computeIfAbsent(key, k -> new Entry());
+      entry.references++;
+    } finally {
+      lock.unlock();
+    }
+    // Built outside of the registry lock, other configurations are not blocked by a slow initialization
+    entry.lock.lock();
+    try {
+      if (entry.resolver == null) {
+        entry.resolver = builder.build();
+      }
+    } catch (ServiceDiscoveryException | RuntimeException ex) {
+      release(key, entry);
+      throw ex;
+    } finally {
+      entry.lock.unlock();
+    }
+    return new SharedResolver(entry.resolver, () -> release(key, entry));
+  }
+
+  /**
+   * @return Number of resolvers in use
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(List<Object> key, Entry entry) {
+    ServiceDiscoveryClient closing = null;
+    lock.lock();
+    try {
+      if (--entry.references == 0) {
+        entries.remove(key, entry);
+        closing = entry.resolver;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (closing != null) {
+      closing.close();
+    }
+  }
+
+  private static final class Entry {
+    // Serializes building the resolver, references are guarded by the registry lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ServiceDiscoveryClient resolver;
+    private int references;
+  }
+}
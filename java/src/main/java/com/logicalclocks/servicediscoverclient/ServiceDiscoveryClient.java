@@ -16,6 +16,8 @@
 package com.logicalclocks.servicediscoverclient;
 
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
 
@@ -24,5 +26,20 @@ import java.util.stream.Stream;
 public interface ServiceDiscoveryClient {
   void init(Builder builder) throws ServiceDiscoveryException;
   Stream<Service> getService(ServiceQuery service) throws ServiceDiscoveryException;
+  
+  /**
+   * Like {@link #getService} but returning a missing service or an error as the result instead of throwing it.
+   * Resolvers override it to answer misses without creating exceptions.
+   */
+  default LookupResult lookupService(ServiceQuery service) {
+    try {
+      return LookupResult.found(getService(service));
+    } catch (ServiceNotFoundException ex) {
+      return LookupResult.notFound(service);
+    } catch (ServiceDiscoveryException ex) {
+      return LookupResult.error(ex);
+    }
+  }
+  
   void close();
 }
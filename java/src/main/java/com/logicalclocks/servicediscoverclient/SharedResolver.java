@@ -0,0 +1,77 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient;
+
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Reference to a resolver of a {@link ResolverRegistry}. Closing it releases the reference, the resolver itself
+ * is closed once all of its references are released.
+ */
+public final class SharedResolver implements ServiceDiscoveryClient {
+  private final ServiceDiscoveryClient resolver;
+  private final Runnable release;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  SharedResolver(ServiceDiscoveryClient resolver, Runnable release) {
+    this.resolver = resolver;
+    this.release = release;
+  }
+
+  @Override
+  public void init(Builder builder) throws ServiceDiscoveryException {
+    throw new ServiceDiscoveryGenericException("Shared resolvers are initialized by the registry");
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    if (closed.get()) {
+      throw new ServiceDiscoveryGenericException("Shared resolver has been closed");
+    }
+    return resolver.getService(service);
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    if (closed.get()) {
+      return LookupResult.error(new ServiceDiscoveryGenericException("Shared resolver has been closed"));
+    }
+    return resolver.lookupService(service);
+  }
+
+  /**
+   * @return The shared resolver, for the operations of a specific resolver type. It must not be closed
+   * directly
+   */
+  public ServiceDiscoveryClient getResolver() {
+    return resolver;
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      release.run();
+    }
+  }
+}
@@ -27,4 +27,9 @@ public class ServiceDiscoveryException extends Exception {
   public ServiceDiscoveryException(String message, Throwable throwable) {
     super(message, throwable);
   }
+  
+  protected ServiceDiscoveryException(String message, Throwable throwable, boolean enableSuppression,
+      boolean writableStackTrace) {
+    super(message, throwable, enableSuppression, writableStackTrace);
+  }
 }
@@ -15,8 +15,27 @@
  */
 package com.logicalclocks.servicediscoverclient.exceptions;
 
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+
 public class ServiceNotFoundException extends ServiceDiscoveryException {
+  private final ServiceQuery query;
+  
   public ServiceNotFoundException(String message) {
     super(message);
+    this.query = null;
+  }
+  
+  /**
+   * Lightweight exception for the expected case of a missing service: it has no stack trace and its message is
+   * only built when asked for
+   */
+  public ServiceNotFoundException(ServiceQuery query) {
+    super(null, null, false, false);
+    this.query = query;
+  }
+  
+  @Override
+  public String getMessage() {
+    return query != null ? "Could not find service " + query : super.getMessage();
   }
 }
@@ -0,0 +1,223 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.reactive;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Reactive Streams {@link Publisher} of the instances of a service. Every subscriber receives the current instance
+ * set and then an update every time it changes. Answers with the same instances in another order are not updates.
+ *
+ * The service is resolved with any {@link ServiceDiscoveryClient} on a scheduler, never on the subscriber's thread,
+ * so non-blocking servers can consume it directly. Every subscription polls with its own task, which runs on one
+ * thread of the scheduler at a time and blocks it while resolving. Updates are conflated: when the subscriber has no
+ * outstanding demand only the latest instance set is kept and the next update it receives holds the changes since
+ * the last one it received. Resolution failures other than the service not being found are retried on the next
+ * poll without terminating the subscription.
+ *
+ * On JDK 9 and later {@code org.reactivestreams.FlowAdapters} adapts the publisher to
+ * {@code java.util.concurrent.Flow}.
+ */
+public class ServicePublisher implements Publisher<ServiceUpdate> {
+  public static final int DEFAULT_SCHEDULER_THREADS = 4;
+  
+  private final ServiceDiscoveryClient client;
+  private final ServiceQuery service;
+  private final long pollIntervalNanos;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Resolve on a pool of {@value #DEFAULT_SCHEDULER_THREADS} daemon threads shared by the publishers built with
+   * this constructor, so a slow or hung lookup only delays the other publishers once it holds all of them. Pass
+   * a scheduler to isolate publishers whose resolvers may block for long, or wrap them in a caching resolver.
+   */
+  public ServicePublisher(@NonNull ServiceDiscoveryClient client, @NonNull ServiceQuery service,
+      @NonNull Duration pollInterval) {
+    this(client, service, pollInterval, DefaultScheduler.INSTANCE);
+  }
+
+  public ServicePublisher(@NonNull ServiceDiscoveryClient client, @NonNull ServiceQuery service,
+      @NonNull Duration pollInterval, @NonNull ScheduledExecutorService scheduler) {
+    this.client = client;
+    this.service = service;
+    this.pollIntervalNanos = pollInterval.toNanos();
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super ServiceUpdate> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber must not be null");
+    }
+    new ServiceSubscription(subscriber).start();
+  }
+
+  private static final class DefaultScheduler {
+    private static final ScheduledExecutorService INSTANCE = newScheduler();
+    
+    private static ScheduledExecutorService newScheduler() {
+      ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(DEFAULT_SCHEDULER_THREADS,
+          new ThreadFactoryBuilder()
+              .setNameFormat("service-discovery-publisher-%d")
+              .setDaemon(true)
+              .build());
+      // Cancelled subscriptions do not keep their task until its next poll
+      scheduler.setRemoveOnCancelPolicy(true);
+      return scheduler;
+    }
+  }
+
+  private final class ServiceSubscription implements Subscription, Runnable {
+    private final Subscriber<? super ServiceUpdate> subscriber;
+    private final AtomicLong requested = new AtomicLong();
+    // Serializes the signals to the subscriber, whichever thread polls or requests
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile List<Service> latest;
+    private volatile Throwable error;
+    private volatile ScheduledFuture<?> polling;
+    // Only accessed while draining, the last polled answer and the instance set delivered to the subscriber
+    private List<Service> delivered;
+    private Set<Service> deliveredSet;
+
+    private ServiceSubscription(Subscriber<? super ServiceUpdate> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    private void start() {
+      subscriber.onSubscribe(this);
+      if (!cancelled) {
+        polling = scheduler.scheduleWithFixedDelay(this, 0, pollIntervalNanos, TimeUnit.NANOSECONDS);
+        if (cancelled) {
+          polling.cancel(false);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+      try {
+        LookupResult result = client.lookupService(service);
+        if (result.getStatus() == LookupResult.Status.ERROR) {
+          // Keep the last instance set and retry on the next poll
+          return;
+        }
+        // Empty if the service was not found
+        try (Stream<Service> services = result.getServices()) {
+          latest = ImmutableList.copyOf(services.iterator());
+        }
+      } catch (RuntimeException ex) {
+        return;
+      }
+      drain();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        error = new IllegalArgumentException("Subscriber requested " + n + " updates, must be positive");
+      } else {
+        long current;
+        do {
+          current = requested.get();
+          if (current == Long.MAX_VALUE) {
+            break;
+          }
+        } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      ScheduledFuture<?> p = polling;
+      if (p != null) {
+        p.cancel(false);
+      }
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        if (cancelled) {
+          return;
+        }
+        if (error != null) {
+          cancel();
+          subscriber.onError(error);
+          return;
+        }
+        List<Service> current = latest;
+        if (current != null && current != delivered && requested.get() > 0) {
+          // Resolvers may return the same instances in another order, e.g. sorted by round trip time
+          Set<Service> currentSet = ImmutableSet.copyOf(current);
+          ServiceUpdate update = currentSet.equals(deliveredSet) ? null : diff(current, currentSet);
+          delivered = current;
+          deliveredSet = currentSet;
+          if (update != null) {
+            if (requested.get() != Long.MAX_VALUE) {
+              requested.decrementAndGet();
+            }
+            subscriber.onNext(update);
+          }
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private ServiceUpdate diff(List<Service> current, Set<Service> currentSet) {
+      if (deliveredSet == null) {
+        return ServiceUpdate.of(current, current, Collections.emptyList());
+      }
+      List<Service> added = currentSet.stream()
+          .filter(s -> !deliveredSet.contains(s))
+          .collect(ImmutableList.toImmutableList());
+      List<Service> removed = deliveredSet.stream()
+          .filter(s -> !currentSet.contains(s))
+          .collect(ImmutableList.toImmutableList());
+      return ServiceUpdate.of(current, added, removed);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+/**
+ * Address families resolved for the targets of SRV records and the order they are returned in
+ */
+public enum AddressFamily {
+  /**
+   * Only A records
+   */
+  IPV4_ONLY,
+  /**
+   * Only AAAA records
+   */
+  IPV6_ONLY,
+  /**
+   * A and AAAA records, IPv4 addresses first
+   */
+  IPV4_FIRST,
+  /**
+   * A and AAAA records, IPv6 addresses first
+   */
+  IPV6_FIRST;
+
+  boolean includesIPv4() {
+    return this != IPV6_ONLY;
+  }
+
+  boolean includesIPv6() {
+    return this != IPV4_ONLY;
+  }
+
+  boolean isDualStack() {
+    return this == IPV4_FIRST || this == IPV6_FIRST;
+  }
+}
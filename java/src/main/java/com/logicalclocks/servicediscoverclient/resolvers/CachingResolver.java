@@ -15,65 +15,153 @@
  */
 package com.logicalclocks.servicediscoverclient.resolvers;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.logicalclocks.servicediscoverclient.Builder;
 import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
-import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.logicalclocks.servicediscoverclient.tracing.Span;
+import com.logicalclocks.servicediscoverclient.tracing.Tracer;
 import lombok.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Resolver caching the answers of another resolver.
+ *
+ * By default answers are cached per query. In tag index mode the full instance set of a service is fetched once,
+ * with the query tags cleared, and tag subset queries are answered from a bitmap index over the instance tags.
+ * New tag combinations then cost no upstream lookups. Tag index mode needs a resolver returning instance tags,
+ * such as the HTTP resolver.
+ *
+ * With adaptive expiration every cached answer has its own expiration, starting at the configured cache
+ * expiration. It is halved when a refresh finds the instance set changed and grows by a quarter when it is
+ * unchanged, between the configured bounds. While one caller refreshes an expired answer, concurrent callers
+ * are served the previous answer.
+ *
+ * Refresh listeners are notified with the new answer every time a query is loaded from the underlying resolver.
+ */
 public class CachingResolver implements ServiceDiscoveryClient {
+    // Loaded for services which were not found, removed right after the lookup so that misses are not cached
+    private static final List<Service> NOT_FOUND = Collections.unmodifiableList(new ArrayList<>(0));
+    private static final ServiceTagIndex NOT_FOUND_INDEX = new ServiceTagIndex(NOT_FOUND);
+    private static final AdaptiveEntry NOT_FOUND_ENTRY = new AdaptiveEntry(NOT_FOUND, 0, 0);
+
     private ServiceDiscoveryClient resolver;
 
-    private LoadingCache<ServiceQuery, List<Service>> serviceCache;
+    // Only one of the caches is built, the one of the mode of the resolver
+    private Cache<ServiceQuery, List<Service>> serviceCache;
+    // Only in tag index mode, keyed by the query without tags
+    private Cache<ServiceQuery, ServiceTagIndex> indexCache;
+    // Only in adaptive expiration mode, with or without tag index
+    private Cache<ServiceQuery, AdaptiveEntry> adaptiveCache;
+    private boolean tagIndex;
+    private Tracer tracer;
+    private long initialExpirationNanos;
+    private long minExpirationNanos;
+    private long maxExpirationNanos;
+
+    private Map<ServiceQuery, List<Consumer<List<Service>>>> refreshListeners;
 
     public CachingResolver() {
     }
 
     @Override
     public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+        if (builder.getCacheTagIndex() && builder.getServiceDiscoveryClient() == null) {
+            // The DNS fallback does not return instance tags, every tagged query would be empty
+            throw new ServiceDiscoveryGenericException("Cache tag index needs a resolver returning instance tags, "
+                    + "such as the HTTP resolver");
+        }
         if (builder.getServiceDiscoveryClient() == null) {
-            // Fallback to DNS resolver
+            // Fallback to DNS resolver, shared with the other caching resolvers falling back to the same one
             resolver = new Builder(Type.DNS)
                     .withDnsHost(builder.getDnsHost())
                     .withDnsPort(builder.getDnsPort())
-                    .build();
+                    .withTracer(builder.getTracer())
+                    .buildShared();
         } else {
             resolver = builder.getServiceDiscoveryClient();
         }
-        serviceCache = CacheBuilder.newBuilder()
-                .expireAfterWrite(builder.getCacheExpiration())
-                .weakValues()
-                .build(new CacheLoader<ServiceQuery, List<Service>>() {
-                    @Override
-                    public List<Service> load(ServiceQuery serviceQuery) throws Exception {
-                        return getServiceInternal(serviceQuery);
-                    }
-                });
+        refreshListeners = new ConcurrentHashMap<>();
+        tracer = builder.getTracer();
+        tagIndex = builder.getCacheTagIndex();
+        if (builder.getCacheMinExpiration() != null && builder.getCacheMaxExpiration() != null) {
+            initAdaptive(builder);
+        } else if (tagIndex) {
+            indexCache = CacheBuilder.newBuilder()
+                    .expireAfterWrite(builder.getCacheExpiration())
+                    .build();
+        } else {
+            serviceCache = CacheBuilder.newBuilder()
+                    .expireAfterWrite(builder.getCacheExpiration())
+                    .weakValues()
+                    .build();
+        }
     }
 
     @Override
     public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
-        if (serviceCache == null || resolver == null) {
-            throw new ServiceDiscoveryGenericException("Caching resolver has not been initialized");
+        return lookup(service).orElseThrow();
+    }
+
+    @Override
+    public LookupResult lookupService(@NonNull ServiceQuery service) {
+        return lookup(service);
+    }
+
+    private LookupResult lookup(ServiceQuery service) {
+        if (resolver == null) {
+            return LookupResult.error(
+                    new ServiceDiscoveryGenericException("Caching resolver has not been initialized"));
         }
-        try {
-            return serviceCache.get(service).stream();
-        } catch (ExecutionException ex) {
-            if (ex.getCause() != null && ex.getCause() instanceof ServiceNotFoundException) {
-                throw (ServiceNotFoundException) ex.getCause();
+        try (Span span = tracer.startSpan("cache.get_service").setAttribute("service.name", service.getName())) {
+            try {
+                if (adaptiveCache != null) {
+                    return getServiceAdaptive(service, span);
+                }
+                if (indexCache != null) {
+                    return getServiceIndexed(service, span);
+                }
+                // Set by the loader, which only runs on a miss
+                AtomicBoolean loaded = new AtomicBoolean();
+                List<Service> services = serviceCache.get(service, () -> {
+                    loaded.set(true);
+                    List<Service> answer = getServiceInternal(service, span);
+                    return answer != null ? answer : NOT_FOUND;
+                });
+                span.setAttribute("cache.hit", !loaded.get());
+                if (services == NOT_FOUND) {
+                    serviceCache.asMap().remove(service, NOT_FOUND);
+                    return LookupResult.notFound(service);
+                }
+                return LookupResult.found(services.stream());
+            } catch (ExecutionException ex) {
+                span.recordException(ex.getCause() != null ? ex.getCause() : ex);
+                return LookupResult.error(new ServiceDiscoveryException(ex));
+            } catch (ServiceDiscoveryException ex) {
+                span.recordException(ex);
+                return LookupResult.error(ex);
+            } catch (RuntimeException ex) {
+                span.recordException(ex);
+                throw ex;
             }
-            throw new ServiceDiscoveryException(ex);
         }
     }
 
@@ -84,7 +172,200 @@ public class CachingResolver implements ServiceDiscoveryClient {
         }
     }
 
-    private List<Service> getServiceInternal(ServiceQuery service) throws ServiceDiscoveryException {
-        return resolver.getService(service).collect(Collectors.toList());
+    /**
+     * Notify listener with the answer to service every time it is loaded from the underlying resolver, an empty
+     * list if the service is not found. The listener is called on the thread loading the answer and must not
+     * block.
+     */
+    public void addRefreshListener(@NonNull ServiceQuery service, @NonNull Consumer<List<Service>> listener) {
+        refreshListeners.computeIfAbsent(service, s -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void removeRefreshListener(@NonNull ServiceQuery service, @NonNull Consumer<List<Service>> listener) {
+        refreshListeners.computeIfPresent(service, (s, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    @VisibleForTesting
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private void initAdaptive(Builder builder) throws ServiceDiscoveryGenericException {
+        minExpirationNanos = builder.getCacheMinExpiration().toNanos();
+        maxExpirationNanos = builder.getCacheMaxExpiration().toNanos();
+        if (minExpirationNanos <= 0 || minExpirationNanos > maxExpirationNanos) {
+            throw new ServiceDiscoveryGenericException("Cache minimum expiration must be positive and not greater "
+                    + "than the maximum expiration");
+        }
+        initialExpirationNanos = clampExpiration(builder.getCacheExpiration().toNanos());
+        adaptiveCache = CacheBuilder.newBuilder()
+                // Keep the history of answers which are still queried, even at the maximum expiration
+                .expireAfterAccess(builder.getCacheMaxExpiration().multipliedBy(2))
+                .build();
+    }
+
+    private LookupResult getServiceIndexed(ServiceQuery service, Span span) throws ExecutionException {
+        ServiceQuery key = withoutTags(service);
+        AtomicBoolean loaded = new AtomicBoolean();
+        ServiceTagIndex index = indexCache.get(key, () -> {
+            loaded.set(true);
+            List<Service> services = getServiceInternal(key, span);
+            return services != null ? new ServiceTagIndex(services) : NOT_FOUND_INDEX;
+        });
+        span.setAttribute("cache.hit", !loaded.get());
+        if (index == NOT_FOUND_INDEX) {
+            indexCache.asMap().remove(key, NOT_FOUND_INDEX);
+            return LookupResult.notFound(service);
+        }
+        return query(index, service);
+    }
+
+    private LookupResult getServiceAdaptive(ServiceQuery service, Span span)
+            throws ExecutionException, ServiceDiscoveryException {
+        ServiceQuery key = tagIndex ? withoutTags(service) : service;
+        AtomicBoolean loaded = new AtomicBoolean();
+        AdaptiveEntry entry = adaptiveCache.get(key, () -> {
+            loaded.set(true);
+            List<Service> services = getServiceInternal(key, span);
+            return services != null ? new AdaptiveEntry(services, nanoTime(), initialExpirationNanos)
+                    : NOT_FOUND_ENTRY;
+        });
+        boolean hit = !loaded.get();
+        if (entry == NOT_FOUND_ENTRY) {
+            adaptiveCache.asMap().remove(key, NOT_FOUND_ENTRY);
+            return LookupResult.notFound(service);
+        }
+        if (nanoTime() - entry.loadedAt >= entry.expirationNanos && entry.refreshing.compareAndSet(false, true)) {
+            span.addEvent("cache.refresh");
+            hit = false;
+            entry = refresh(key, entry, span);
+            if (entry == null) {
+                return LookupResult.notFound(service);
+            }
+        }
+        span.setAttribute("cache.hit", hit);
+        if (tagIndex) {
+            return query(entry.index(), service);
+        }
+        return LookupResult.found(entry.services.stream());
+    }
+
+    /**
+     * @return The refreshed entry or null if the service is no longer found
+     */
+    private AdaptiveEntry refresh(ServiceQuery key, AdaptiveEntry expired, Span parent)
+            throws ServiceDiscoveryException {
+        List<Service> services;
+        try {
+            services = getServiceInternal(key, parent);
+        } catch (ServiceDiscoveryException | RuntimeException ex) {
+            // Let the next caller retry
+            expired.refreshing.set(false);
+            throw ex;
+        }
+        if (services == null) {
+            adaptiveCache.asMap().remove(key, expired);
+            return null;
+        }
+        boolean changed = !new HashSet<>(expired.services).equals(new HashSet<>(services));
+        long expirationNanos = clampExpiration(changed
+                ? expired.expirationNanos / 2
+                : expired.expirationNanos + expired.expirationNanos / 4);
+        AdaptiveEntry refreshed = new AdaptiveEntry(services, nanoTime(), expirationNanos);
+        adaptiveCache.asMap().replace(key, expired, refreshed);
+        return refreshed;
+    }
+
+    private long clampExpiration(long expirationNanos) {
+        return Math.max(minExpirationNanos, Math.min(maxExpirationNanos, expirationNanos));
+    }
+
+    private ServiceQuery withoutTags(ServiceQuery service) {
+        return service.toBuilder()
+                .tags(Collections.emptySet())
+                .build();
+    }
+
+    private LookupResult query(ServiceTagIndex index, ServiceQuery service) {
+        List<Service> services = index.query(service.getTags());
+        if (services.isEmpty()) {
+            return LookupResult.notFound(service);
+        }
+        return LookupResult.found(services.stream());
+    }
+
+    /**
+     * @return The services or null if the underlying resolver did not find the service
+     */
+    private List<Service> getServiceInternal(ServiceQuery service, Span parent) throws ServiceDiscoveryException {
+        List<Service> services;
+        try (Span span = tracer.startSpan("cache.load", parent).setAttribute("service.name", service.getName())) {
+            LookupResult result = resolver.lookupService(service);
+            if (result.getStatus() == LookupResult.Status.NOT_FOUND) {
+                span.setAttribute("instances", 0);
+                if (!refreshListeners.isEmpty()) {
+                    // The instances are gone
+                    notifyRefreshListeners(service, Collections.emptyList());
+                }
+                return null;
+            }
+            services = result.orElseThrow().collect(Collectors.toList());
+            span.setAttribute("instances", services.size());
+        }
+        if (!refreshListeners.isEmpty()) {
+            notifyRefreshListeners(service, services);
+        }
+        return services;
+    }
+
+    private void notifyRefreshListeners(ServiceQuery loaded, List<Service> services) {
+        ServiceTagIndex index = null;
+        for (Map.Entry<ServiceQuery, List<Consumer<List<Service>>>> entry : refreshListeners.entrySet()) {
+            ServiceQuery service = entry.getKey();
+            List<Service> answer;
+            if (service.equals(loaded)) {
+                answer = services;
+            } else if (tagIndex && withoutTags(service).equals(loaded)) {
+                // In tag index mode the full set is loaded and tagged queries are answered from it
+                index = index != null ? index : new ServiceTagIndex(services);
+                answer = index.query(service.getTags());
+            } else {
+                continue;
+            }
+            for (Consumer<List<Service>> listener : entry.getValue()) {
+                try {
+                    listener.accept(answer);
+                } catch (RuntimeException ex) {
+                    // A failing listener must not fail the lookup
+                }
+            }
+        }
+    }
+
+    private static final class AdaptiveEntry {
+        private final List<Service> services;
+        private final long loadedAt;
+        private final long expirationNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile ServiceTagIndex index;
+
+        private AdaptiveEntry(List<Service> services, long loadedAt, long expirationNanos) {
+            this.services = services;
+            this.loadedAt = loadedAt;
+            this.expirationNanos = expirationNanos;
+        }
+
+        private ServiceTagIndex index() {
+            ServiceTagIndex i = index;
+            if (i == null) {
+                // Racing callers build equal indexes, no need to lock
+                i = new ServiceTagIndex(services);
+                index = i;
+            }
+            return i;
+        }
     }
 }
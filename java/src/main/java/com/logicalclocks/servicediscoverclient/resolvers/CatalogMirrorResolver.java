@@ -0,0 +1,346 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.State;
+import com.orbitz.consul.model.health.HealthCheck;
+import com.orbitz.consul.option.QueryOptions;
+import lombok.NonNull;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Resolver keeping a mirror of the whole Consul catalog in memory, for clients resolving many different services.
+ *
+ * Two blocking queries watch the catalog, one the list of services and one the health checks of all the
+ * services. A service is reloaded from the HTTP API only when it is added, its tags change or one of its
+ * health checks changes state, so the number of outbound requests depends on the rate of change of the catalog
+ * rather than on the number of lookups. All the services are also reloaded every resync interval, catching
+ * changes which do not show in the watched queries.
+ *
+ * Lookups are answered from the mirror of the local datacenter. Queries with a filter, node metadata, near, a
+ * preferred zone or a datacenter, and prepared queries, are passed to the HTTP resolver.
+ */
+public class CatalogMirrorResolver implements ServiceDiscoveryClient {
+  private static final long RETRY_MILLIS = 1000;
+  // Read timeout of the OkHttp client of consul-client unless configured
+  private static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(10);
+
+  private HttpResolver resolver;
+  private Consul client;
+  private long waitSeconds;
+  private long resyncIntervalNanos;
+  private int concurrency;
+  private ExecutorService executor;
+
+  // Service names and tags of the catalog
+  private volatile Map<String, List<String>> catalog;
+  private Map<String, ServiceTagIndex> services;
+  // Serializes the reloads triggered by the two watches
+  private final ReentrantLock reloadLock = new ReentrantLock();
+  private volatile boolean closed;
+
+  public CatalogMirrorResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getCatalogMirrorWait().getSeconds() < 1 || builder.getCatalogMirrorConcurrency() <= 0) {
+      throw new ServiceDiscoveryGenericException("Catalog mirror wait must be at least one second and "
+          + "concurrency must be positive");
+    }
+    Duration wait = builder.getCatalogMirrorWait();
+    Duration readTimeout = builder.getHttpReadTimeout() != null ? builder.getHttpReadTimeout() : DEFAULT_READ_TIMEOUT;
+    // Consul adds up to wait / 16 of jitter to blocking queries
+    if (wait.plus(wait.dividedBy(16)).compareTo(readTimeout) >= 0) {
+      throw new ServiceDiscoveryGenericException("Catalog mirror wait " + wait + " must be shorter than the HTTP "
+          + "read timeout " + readTimeout + " including the jitter Consul adds");
+    }
+    waitSeconds = builder.getCatalogMirrorWait().getSeconds();
+    resyncIntervalNanos = builder.getCatalogMirrorResyncInterval().toNanos();
+    concurrency = builder.getCatalogMirrorConcurrency();
+    resolver = new HttpResolver();
+    resolver.init(builder);
+    client = resolver.getClient();
+    services = new ConcurrentHashMap<>();
+    ConsulResponse<Map<String, List<String>>> response;
+    try {
+      response = client.catalogClient().getServices(QueryOptions.BLANK);
+    } catch (ConsulException ex) {
+      resolver.close();
+      throw new ServiceDiscoveryGenericException("Could not get the service catalog", ex);
+    }
+    catalog = response.getResponse();
+    executor = ResolverExecutors.newExecutor("service-discovery-catalog-mirror-%d", builder.getVirtualThreads());
+    executor.submit(() -> watchCatalog(response.getIndex()));
+    executor.submit(this::watchChecks);
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookup(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+
+  private LookupResult lookup(ServiceQuery service) {
+    if (services == null) {
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Catalog mirror resolver has not been initialized"));
+    }
+    if (service.getFilter() != null || !service.getNodeMeta().isEmpty() || service.getNear() != null
+        || service.getPreferredZone() != null || service.getDatacenter() != null || service.isPreparedQuery()) {
+      return resolver.lookupService(service);
+    }
+    if (!catalog.containsKey(service.getName())) {
+      return LookupResult.notFound(service);
+    }
+    ServiceTagIndex index = services.get(service.getName());
+    if (index == null) {
+      // Not loaded yet by the watches
+      try {
+        index = load(service.getName());
+      } catch (ServiceDiscoveryException ex) {
+        return LookupResult.error(ex);
+      }
+    }
+    List<Service> instances = index.query(service.getTags());
+    if (instances.isEmpty()) {
+      return LookupResult.notFound(service);
+    }
+    return LookupResult.found(instances.stream());
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  private void watchCatalog(BigInteger index) {
+    reload(catalog.keySet());
+    long resyncedAt = System.nanoTime();
+    while (!closed) {
+      try {
+        ConsulResponse<Map<String, List<String>>> response =
+            client.catalogClient().getServices(QueryOptions.blockSeconds((int) waitSeconds, index).build());
+        BigInteger nextIndex = nextIndex(index, response.getIndex());
+        Set<String> changed = new HashSet<>();
+        if (!nextIndex.equals(index)) {
+          Map<String, List<String>> previous = catalog;
+          Map<String, List<String>> current = response.getResponse();
+          for (Map.Entry<String, List<String>> entry : current.entrySet()) {
+            List<String> tags = previous.get(entry.getKey());
+            if (tags == null || !new HashSet<>(tags).equals(new HashSet<>(entry.getValue()))) {
+              changed.add(entry.getKey());
+            }
+          }
+          catalog = current;
+          services.keySet().retainAll(current.keySet());
+          index = nextIndex;
+        }
+        if (System.nanoTime() - resyncedAt >= resyncIntervalNanos) {
+          changed.addAll(catalog.keySet());
+          resyncedAt = System.nanoTime();
+        }
+        reload(changed);
+      } catch (RuntimeException ex) {
+        pause();
+      }
+    }
+  }
+
+  private void watchChecks() {
+    BigInteger index = BigInteger.ZERO;
+    // Checks by node and check id, null until the first answer
+    Map<String, HealthCheck> checks = null;
+    while (!closed) {
+      try {
+        ConsulResponse<List<HealthCheck>> response = client.healthClient()
+            .getChecksByState(State.ANY, QueryOptions.blockSeconds((int) waitSeconds, index).build());
+        BigInteger nextIndex = nextIndex(index, response.getIndex());
+        if (nextIndex.equals(index) && checks != null) {
+          continue;
+        }
+        index = nextIndex;
+        Map<String, HealthCheck> current = new HashMap<>(response.getResponse().size());
+        for (HealthCheck check : response.getResponse()) {
+          current.put(check.getNode() + "/" + check.getCheckId(), check);
+        }
+        if (checks != null) {
+          reload(changedServices(checks, current));
+        }
+        checks = current;
+      } catch (RuntimeException ex) {
+        pause();
+      }
+    }
+  }
+
+  /**
+   * @return Services with a check which was added, removed or changed state. A node check affects all the
+   * services with checks on the node
+   */
+  private Set<String> changedServices(Map<String, HealthCheck> previous, Map<String, HealthCheck> current) {
+    Set<String> changed = new HashSet<>();
+    Set<String> changedNodes = new HashSet<>();
+    Set<String> keys = new HashSet<>(previous.keySet());
+    keys.addAll(current.keySet());
+    for (String key : keys) {
+      HealthCheck before = previous.get(key);
+      HealthCheck after = current.get(key);
+      if (before != null && after != null && before.getStatus().equals(after.getStatus())
+          && before.getServiceName().equals(after.getServiceName())) {
+        continue;
+      }
+      for (HealthCheck check : new HealthCheck[]{before, after}) {
+        if (check == null) {
+          continue;
+        }
+        if (check.getServiceName().isPresent() && !check.getServiceName().get().isEmpty()) {
+          changed.add(check.getServiceName().get());
+        } else {
+          changedNodes.add(check.getNode());
+        }
+      }
+    }
+    if (!changedNodes.isEmpty()) {
+      for (HealthCheck check : current.values()) {
+        if (changedNodes.contains(check.getNode()) && check.getServiceName().isPresent()) {
+          changed.add(check.getServiceName().get());
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Consul indexes only grow, a lower index means the state was reset and the watch must start over
+   */
+  private BigInteger nextIndex(BigInteger index, BigInteger responseIndex) {
+    if (responseIndex == null || responseIndex.compareTo(index) < 0) {
+      return BigInteger.ZERO;
+    }
+    return responseIndex;
+  }
+
+  private void pause() {
+    if (closed) {
+      return;
+    }
+    try {
+      TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      closed = true;
+    }
+  }
+
+  /**
+   * Reload the services from the HTTP API, at most concurrency of them at a time
+   */
+  private void reload(Collection<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    reloadLock.lock();
+    try {
+      Queue<String> pending = new ConcurrentLinkedQueue<>(names);
+      List<Future<?>> loaders = new ArrayList<>();
+      for (int i = 1; i < Math.min(concurrency, names.size()); i++) {
+        loaders.add(executor.submit(() -> reloadAll(pending)));
+      }
+      reloadAll(pending);
+      for (Future<?> loader : loaders) {
+        loader.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      closed = true;
+    } catch (ExecutionException ex) {
+      // reloadAll does not throw
+    } finally {
+      reloadLock.unlock();
+    }
+  }
+
+  private void reloadAll(Queue<String> pending) {
+    String name;
+    while (!closed && (name = pending.poll()) != null) {
+      if (!catalog.containsKey(name)) {
+        continue;
+      }
+      try {
+        load(name);
+      } catch (ServiceDiscoveryException | RuntimeException ex) {
+        // Keep serving the previous answer until the next change or resync
+      }
+    }
+  }
+
+  private ServiceTagIndex load(String name) throws ServiceDiscoveryException {
+    List<Service> instances;
+    LookupResult result = resolver.lookupService(ServiceQuery.of(name, Collections.emptySet()));
+    if (result.getStatus() == LookupResult.Status.NOT_FOUND) {
+      // Registered but no instance is healthy
+      instances = Collections.emptyList();
+    } else {
+      try (Stream<Service> answer = result.orElseThrow()) {
+        instances = answer.collect(Collectors.toList());
+      }
+    }
+    ServiceTagIndex index = new ServiceTagIndex(instances);
+    services.put(name, index);
+    return index;
+  }
+}
@@ -0,0 +1,315 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.CircuitBreakerOpenException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Decorator around another {@link ServiceDiscoveryClient} which stops calling it when it keeps failing.
+ *
+ * The outcome of the last calls is kept in a count based sliding window. When either the failure rate or the
+ * slow call rate in the window crosses the configured threshold the breaker opens and calls fail fast with
+ * {@link CircuitBreakerOpenException}, or are served from the last known answer if that is enabled. After the
+ * open duration a few trial calls are let through (half-open) and depending on their outcome the breaker
+ * closes again or re-opens.
+ *
+ * {@link ServiceNotFoundException} is a valid answer from the underlying resolver and is not counted as a failure.
+ */
+public class CircuitBreakerResolver implements ServiceDiscoveryClient {
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private ServiceDiscoveryClient resolver;
+
+  private int minimumCalls;
+  private float failureRateThreshold;
+  private long slowCallThresholdNanos;
+  private float slowCallRateThreshold;
+  private long openDurationNanos;
+  private int halfOpenCalls;
+  private Cache<ServiceQuery, List<Service>> lastKnown;
+
+  // Sliding window, guarded by lock. A ReentrantLock rather than a monitor so that callers on virtual threads are
+  // not pinned to their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private boolean[] failedCalls;
+  private boolean[] slowCalls;
+  private int windowIndex;
+  private int recordedCalls;
+  private int failedCount;
+  private int slowCount;
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int halfOpenPermitted;
+  private int halfOpenCompleted;
+
+  private final Map<State, AtomicLong> transitions = new EnumMap<>(State.class);
+  private final AtomicLong notPermittedCalls = new AtomicLong();
+
+  public CircuitBreakerResolver() {
+    for (State s : State.values()) {
+      transitions.put(s, new AtomicLong());
+    }
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClient() == null) {
+      throw new ServiceDiscoveryGenericException("Circuit breaker requires an underlying ServiceDiscoveryClient");
+    }
+    if (builder.getCircuitBreakerWindowSize() <= 0) {
+      throw new ServiceDiscoveryGenericException("Circuit breaker window size must be positive");
+    }
+    resolver = builder.getServiceDiscoveryClient();
+    failedCalls = new boolean[builder.getCircuitBreakerWindowSize()];
+    slowCalls = new boolean[builder.getCircuitBreakerWindowSize()];
+    minimumCalls = Math.max(1, Math.min(builder.getCircuitBreakerMinimumCalls(), failedCalls.length));
+    failureRateThreshold = builder.getCircuitBreakerFailureRateThreshold();
+    slowCallThresholdNanos = builder.getCircuitBreakerSlowCallThreshold().toNanos();
+    slowCallRateThreshold = builder.getCircuitBreakerSlowCallRateThreshold();
+    openDurationNanos = builder.getCircuitBreakerOpenDuration().toNanos();
+    halfOpenCalls = Math.max(1, builder.getCircuitBreakerHalfOpenCalls());
+    if (builder.getCircuitBreakerFallbackToLastKnown()) {
+      lastKnown = CacheBuilder.newBuilder()
+          .maximumSize(1000)
+          .build();
+    }
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookup(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+
+  private LookupResult lookup(ServiceQuery service) {
+    if (resolver == null) {
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Circuit breaker resolver has not been initialized"));
+    }
+    if (!tryAcquirePermission()) {
+      notPermittedCalls.incrementAndGet();
+      return fallback(service);
+    }
+
+    long start = nanoTime();
+    try {
+      LookupResult result = resolver.lookupService(service);
+      if (!result.isFound()) {
+        onResult(nanoTime() - start, result.getStatus() == LookupResult.Status.ERROR);
+        return result;
+      }
+      // Materialize the result so that lazy resolution is accounted for in the call duration
+      List<Service> services = result.getServices().collect(Collectors.toList());
+      onResult(nanoTime() - start, false);
+      if (lastKnown != null) {
+        lastKnown.put(service, services);
+      }
+      return LookupResult.found(services.stream());
+    } catch (RuntimeException ex) {
+      onResult(nanoTime() - start, true);
+      throw ex;
+    }
+  }
+
+  public State getState() {
+    lock.lock();
+    try {
+      return state;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param state Target state of the transition
+   * @return Number of times the breaker has transitioned to state
+   */
+  public long getTransitionCount(State state) {
+    return transitions.get(state).get();
+  }
+
+  /**
+   * @return Number of calls which were not forwarded to the underlying resolver because the breaker was open
+   */
+  public long getNotPermittedCallCount() {
+    return notPermittedCalls.get();
+  }
+
+  @Override
+  public void close() {
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  @VisibleForTesting
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  private LookupResult fallback(ServiceQuery service) {
+    if (lastKnown != null) {
+      List<Service> services = lastKnown.getIfPresent(service);
+      if (services != null) {
+        return LookupResult.found(services.stream());
+      }
+    }
+    return LookupResult.error(
+        new CircuitBreakerOpenException("Circuit breaker is open, not resolving service " + service));
+  }
+
+  private boolean tryAcquirePermission() {
+    lock.lock();
+    try {
+      switch (state) {
+        case CLOSED:
+          return true;
+        case OPEN:
+          if (nanoTime() - openedAt < openDurationNanos) {
+            return false;
+          }
+          transitionTo(State.HALF_OPEN);
+          halfOpenPermitted = 1;
+          return true;
+        case HALF_OPEN:
+          if (halfOpenPermitted < halfOpenCalls) {
+            halfOpenPermitted++;
+            return true;
+          }
+          return false;
+        default:
+          return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void onResult(long durationNanos, boolean failed) {
+    lock.lock();
+    try {
+      boolean slow = durationNanos > slowCallThresholdNanos;
+      switch (state) {
+        case CLOSED:
+          record(failed, slow);
+          if (recordedCalls >= minimumCalls && thresholdsExceeded(recordedCalls)) {
+            open();
+          }
+          break;
+        case HALF_OPEN:
+          record(failed, slow);
+          halfOpenCompleted++;
+          if (failed) {
+            open();
+          } else if (halfOpenCompleted >= halfOpenCalls) {
+            if (thresholdsExceeded(halfOpenCompleted)) {
+              open();
+            } else {
+              transitionTo(State.CLOSED);
+              resetWindow();
+            }
+          }
+          break;
+        default:
+          // A call permitted before the breaker opened, its outcome is no longer relevant
+          break;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean thresholdsExceeded(int calls) {
+    return (float) failedCount / calls >= failureRateThreshold
+        || (float) slowCount / calls >= slowCallRateThreshold;
+  }
+
+  private void record(boolean failed, boolean slow) {
+    if (recordedCalls == failedCalls.length) {
+      if (failedCalls[windowIndex]) {
+        failedCount--;
+      }
+      if (slowCalls[windowIndex]) {
+        slowCount--;
+      }
+    } else {
+      recordedCalls++;
+    }
+    failedCalls[windowIndex] = failed;
+    slowCalls[windowIndex] = slow;
+    if (failed) {
+      failedCount++;
+    }
+    if (slow) {
+      slowCount++;
+    }
+    windowIndex = (windowIndex + 1) % failedCalls.length;
+  }
+
+  private void open() {
+    transitionTo(State.OPEN);
+    openedAt = nanoTime();
+    resetWindow();
+  }
+
+  private void resetWindow() {
+    for (int i = 0; i < failedCalls.length; i++) {
+      failedCalls[i] = false;
+      slowCalls[i] = false;
+    }
+    windowIndex = 0;
+    recordedCalls = 0;
+    failedCount = 0;
+    slowCount = 0;
+    halfOpenPermitted = 0;
+    halfOpenCompleted = 0;
+  }
+
+  private void transitionTo(State newState) {
+    if (state != newState) {
+      state = newState;
+      transitions.get(newState).incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+/**
+ * Consistency mode of Consul HTTP API reads
+ */
+public enum Consistency {
+  /**
+   * Served by the leader, which might be stale for a short period during leader election
+   */
+  DEFAULT,
+  /**
+   * Served by any server, possibly stale, without going through the leader
+   */
+  STALE,
+  /**
+   * Served by the leader after verifying its leadership with a quorum
+   */
+  CONSISTENT,
+  /**
+   * Served by the local agent cache, refreshed in the background
+   */
+  CACHED
+}
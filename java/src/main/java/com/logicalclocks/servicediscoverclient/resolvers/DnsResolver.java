@@ -16,27 +16,62 @@
 package com.logicalclocks.servicediscoverclient.resolvers;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.logicalclocks.servicediscoverclient.Builder;
 import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
-import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.logicalclocks.servicediscoverclient.tracing.Span;
+import com.logicalclocks.servicediscoverclient.tracing.Tracer;
 import lombok.NonNull;
 import org.xbill.DNS.Type;
 import org.xbill.DNS.*;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DnsResolver implements ServiceDiscoveryClient {
-  private Resolver resolver;
+  // Large enough for the additional records of most services without falling back to TCP
+  private static final int EDNS_PAYLOAD_SIZE = 4096;
+  // Replaced rather than re-pointed when falling back to other nameservers so concurrent lookups always see a
+  // fully configured resolver without locking
+  private volatile Resolver resolver;
+  private Duration timeout;
+  private AddressFamily addressFamily;
+  private int prefetchTargets;
+  private boolean wireParsing;
+  // Resolver whose nameserver did not answer the fast path, which is not tried again until the nameserver changes
+  private volatile Resolver wireUnreachable;
+  private Tracer tracer;
+  // Resolves the second address family of a target and prefetched targets in the background
+  private ExecutorService executor;
   private static int[] DCLASS = new int[]{
           DClass.IN,
           DClass.CH,
@@ -64,7 +99,17 @@ public class DnsResolver implements ServiceDiscoveryClient {
       } else {
         ((SimpleResolver) resolver).setAddress(new InetSocketAddress(builder.getDnsHost(), builder.getDnsPort()));
       }
-      resolver.setTimeout(4);
+      timeout = builder.getDnsTimeout();
+      resolver.setTimeout(timeout);
+      addressFamily = builder.getDnsAddressFamily() != null
+          ? builder.getDnsAddressFamily()
+          : AddressFamily.IPV4_ONLY;
+      prefetchTargets = builder.getDnsPrefetchTargets() != null ? builder.getDnsPrefetchTargets() : 0;
+      wireParsing = builder.getDnsWireParsing();
+      tracer = builder.getTracer();
+      if (addressFamily.isDualStack() || prefetchTargets > 0) {
+        executor = ResolverExecutors.newExecutor("service-discovery-dns-%d", builder.getVirtualThreads());
+      }
     } catch (UnknownHostException ex) {
       throw new ServiceDiscoveryGenericException(ex);
     }
@@ -72,63 +117,125 @@ public class DnsResolver implements ServiceDiscoveryClient {
   
   @Override
   public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
-    return getService(service, false);
+    return lookupService(service, false).orElseThrow();
+  }
+  
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookupService(service, false);
   }
   
   public Stream<Service> getServiceSRVOnly(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
-    return getService(service, true);
+    return lookupService(service, true).orElseThrow();
   }
   
-  private Stream<Service> getService(@NonNull ServiceQuery service,
-      boolean SRVOnly) throws ServiceDiscoveryException {
+  private LookupResult lookupService(ServiceQuery service, boolean SRVOnly) {
     if (resolver == null) {
-      throw new ServiceDiscoveryGenericException("DNS resolver has not been initialized");
+      return LookupResult.error(new ServiceDiscoveryGenericException("DNS resolver has not been initialized"));
     }
     
-    try {
-      List<Record> SRVRecords = getSRVRecords(service);
-      return SRVRecords.stream()
+    if (wireParsing && !SRVOnly && resolver != wireUnreachable) {
+      List<Service> services = getServiceWire(service);
+      if (services != null) {
+        return LookupResult.found(services.stream());
+      }
+    }
+    try (Span span = tracer.startSpan("dns.srv_lookup").setAttribute("service.name", service.getName())) {
+      List<Record> SRVRecords = getSRVRecords(service, span);
+      if (SRVRecords == null) {
+        return LookupResult.notFound(service);
+      }
+      Stream<SRVRecord> targets = SRVRecords.stream()
           .filter(r -> r.getType() == Type.SRV)
-          .map(r -> (SRVRecord) r)
-          .map(srv -> {
-            if(SRVOnly){
-              return Service.of(service.getName(), srv.getTarget().toString(true),
-                  srv.getPort());
-            }
-            String aRecord = getARecord(srv);
-            if (aRecord == null) {
-              return null;
-            }
-            return Service.of(service.getName(), aRecord, srv.getPort());
-          })
-          .filter(Objects::nonNull);
+          .map(r -> (SRVRecord) r);
+      if (SRVOnly) {
+        return LookupResult.found(
+            targets.map(srv -> Service.of(service.getName(), srv.getTarget().toString(true), srv.getPort())));
+      }
+      // Targets are resolved one at a time as the stream is consumed so that short-circuiting consumers,
+      // like findFirst, only pay for the lookups they use
+      TargetSpliterator spliterator = new TargetSpliterator(service, targets.iterator(), span);
+      return LookupResult.found(StreamSupport.stream(spliterator, false)
+          .onClose(spliterator::cancelPrefetched));
     } catch (TextParseException ex) {
-      throw new ServiceDiscoveryGenericException(ex);
+      return LookupResult.error(new ServiceDiscoveryGenericException(ex));
+    }
+  }
+
+  /**
+   * Fast path sending the SRV query directly and reading the services from the response, with the addresses of
+   * the targets taken from the additional section.
+   *
+   * @return The services or null if the response cannot be answered this way, the caller then falls back to the
+   * regular lookups which also retry the other nameservers
+   */
+  private List<Service> getServiceWire(ServiceQuery service) {
+    try (Span span = tracer.startSpan("dns.wire_lookup").setAttribute("service.name", service.getName())) {
+      Resolver nameserverResolver = resolver;
+      try {
+        Name name = Name.fromString(service.getName(), Name.root);
+        Message query = Message.newQuery(Record.newRecord(name, Type.SRV, DClass.IN));
+        query.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+        ByteBuffer response = sendQuery(query.toWire());
+        List<Service> services = DnsWireParser.parseServices(response, query.getHeader().getID(),
+            service.getName(), addressFamily);
+        span.setAttribute("dns.fallback", services == null);
+        if (services != null) {
+          span.setAttribute("instances", services.size());
+        }
+        return services;
+      } catch (IOException ex) {
+        // Such as large UDP responses being dropped on the way, do not wait for this nameserver again
+        wireUnreachable = nameserverResolver;
+        span.recordException(ex).setAttribute("dns.fallback", true);
+        return null;
+      }
+    }
+  }
+  
+  @VisibleForTesting
+  public ByteBuffer sendQuery(byte[] query) throws IOException {
+    SimpleResolver nameserverResolver = (SimpleResolver) resolver;
+    InetSocketAddress nameserver = nameserverResolver.getAddress();
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout((int) nameserverResolver.getTimeout().toMillis());
+      socket.connect(nameserver);
+      socket.send(new DatagramPacket(query, query.length));
+      byte[] response = new byte[EDNS_PAYLOAD_SIZE];
+      DatagramPacket packet = new DatagramPacket(response, response.length);
+      socket.receive(packet);
+      return ByteBuffer.wrap(response, 0, packet.getLength());
     }
   }
 
-  private List<Record> getSRVRecords(ServiceQuery service) throws TextParseException, ServiceNotFoundException {
+  /**
+   * @return The records or null if none of the nameservers has them
+   */
+  private List<Record> getSRVRecords(ServiceQuery service, Span span) throws TextParseException {
     Name name = Name.fromString(service.getName());
-    try {
-      return getSRVRecordsInternal(name, service);
-    } catch (ServiceNotFoundException ex) {
-      ResolverConfig.refresh();
-      List<InetSocketAddress> nameservers = ResolverConfig.getCurrentConfig().servers();
-      Iterator<InetSocketAddress> nsIterator = nameservers.iterator();
-      while (nsIterator.hasNext()) {
-        ((SimpleResolver) resolver).setAddress(nsIterator.next());
-        try {
-          // Invalidate Lookup cache if we don't get an answer
-          invalidateCacheForName(name);
-          return getSRVRecordsInternal(name, service);
-        } catch (ServiceNotFoundException ex1) {
-          if (!nsIterator.hasNext()) {
-            throw ex1;
-          }
+    List<Record> records = getSRVRecordsInternal(name, span);
+    if (records != null) {
+      return records;
+    }
+    ResolverConfig.refresh();
+    List<InetSocketAddress> nameservers = ResolverConfig.getCurrentConfig().servers();
+    for (InetSocketAddress nameserver : nameservers) {
+      Resolver nameserverResolver = new SimpleResolver(nameserver);
+      nameserverResolver.setTimeout(timeout);
+      resolver = nameserverResolver;
+      try (Span fallback = tracer.startSpan("dns.nameserver_fallback", span)) {
+        if (fallback.isRecording()) {
+          fallback.setAttribute("dns.nameserver", nameserver.toString());
+        }
+        // Invalidate Lookup cache if we don't get an answer
+        invalidateCacheForName(name);
+        records = getSRVRecordsInternal(name, fallback);
+        if (records != null) {
+          return records;
         }
       }
-      throw ex;
     }
+    return null;
   }
 
   private void invalidateCacheForName(Name name) {
@@ -153,25 +260,135 @@ public class DnsResolver implements ServiceDiscoveryClient {
     }
   }
 
-  private List<Record> getSRVRecordsInternal(Name name, ServiceQuery service)
-          throws TextParseException, ServiceNotFoundException {
+  private List<Record> getSRVRecordsInternal(Name name, Span span) {
     Lookup lookup = lookup(name, Type.SRV);
     if (lookup.getResult() != Lookup.SUCCESSFUL) {
-      throw new ServiceNotFoundException("Error: " + lookup.getErrorString() + " Could not find service " + service);
+      span.setAttribute("dns.error", lookup.getErrorString());
+      return null;
     }
     return Lists.newArrayList(lookup.getAnswers());
   }
   
-  private String getARecord(SRVRecord srvRecord) {
-    Lookup lookup = lookup(srvRecord.getTarget(), Type.A);
-    Record[] aRecords = lookup.getAnswers();
-    for (Record r : aRecords) {
-      if (r.getType() == Type.A) {
-        ARecord aRecord = (ARecord) r;
-        return aRecord.getAddress().getHostAddress();
+  private List<Service> resolveTarget(ServiceQuery service, SRVRecord srvRecord, Span parent) {
+    try (Span span = tracer.startSpan("dns.target_lookup", parent)) {
+      if (span.isRecording()) {
+        span.setAttribute("dns.target", srvRecord.getTarget().toString());
+      }
+      List<String> addresses = getAddresses(srvRecord, span);
+      List<Service> services = new ArrayList<>(addresses.size());
+      for (String address : addresses) {
+        services.add(Service.of(service.getName(), address, srvRecord.getPort()));
+      }
+      span.setAttribute("instances", services.size());
+      return services;
+    }
+  }
+  
+  private List<String> getAddresses(SRVRecord srvRecord, Span parent) {
+    Name target = srvRecord.getTarget();
+    if (!addressFamily.isDualStack()) {
+      return getAddresses(target, addressFamily.includesIPv4() ? Type.A : Type.AAAA, parent);
+    }
+    int first = addressFamily == AddressFamily.IPV4_FIRST ? Type.A : Type.AAAA;
+    int second = first == Type.A ? Type.AAAA : Type.A;
+    // Resolve the second family in the background while the first one is resolved on the caller's thread
+    Future<List<String>> secondAddresses = executor.submit(() -> getAddresses(target, second, parent));
+    List<String> addresses = new ArrayList<>(getAddresses(target, first, parent));
+    try {
+      addresses.addAll(secondAddresses.get());
+    } catch (ExecutionException ex) {
+      // Return the addresses of the first family only
+    } catch (InterruptedException ex) {
+      secondAddresses.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    return addresses;
+  }
+  
+  private List<String> getAddresses(Name target, int type, Span parent) {
+    try (Span span = tracer.startSpan("dns.address_lookup", parent)) {
+      if (span.isRecording()) {
+        span.setAttribute("dns.target", target.toString())
+            .setAttribute("dns.type", Type.string(type));
+      }
+      Record[] answers = lookup(target, type).getAnswers();
+      if (answers == null) {
+        span.setAttribute("dns.addresses", 0);
+        return Collections.emptyList();
+      }
+      List<String> addresses = new ArrayList<>(answers.length);
+      for (Record r : answers) {
+        if (r.getType() != type) {
+          continue;
+        }
+        InetAddress address = type == Type.A ? ((ARecord) r).getAddress() : ((AAAARecord) r).getAddress();
+        addresses.add(InetAddresses.toAddrString(address));
+      }
+      span.setAttribute("dns.addresses", addresses.size());
+      return addresses;
+    }
+  }
+  
+  /**
+   * Resolves SRV targets on demand. With prefetching enabled, the next targets are resolved in the background
+   * while the current one is consumed.
+   */
+  private class TargetSpliterator extends Spliterators.AbstractSpliterator<Service> {
+    private final ServiceQuery service;
+    private final Iterator<SRVRecord> targets;
+    // Span of the SRV lookup the targets come from
+    private final Span parent;
+    private final Deque<Future<List<Service>>> prefetched = new ArrayDeque<>();
+    private Iterator<Service> current = Collections.emptyIterator();
+    
+    private TargetSpliterator(ServiceQuery service, Iterator<SRVRecord> targets, Span parent) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.service = service;
+      this.targets = targets;
+      this.parent = parent;
+    }
+    
+    @Override
+    public boolean tryAdvance(Consumer<? super Service> action) {
+      while (!current.hasNext()) {
+        Future<List<Service>> next = prefetched.poll();
+        if (next == null && !targets.hasNext()) {
+          return false;
+        }
+        SRVRecord target = next == null ? targets.next() : null;
+        prefetch();
+        current = next == null ? resolveTarget(service, target, parent).iterator() : await(next).iterator();
+      }
+      action.accept(current.next());
+      return true;
+    }
+    
+    private void prefetch() {
+      while (prefetched.size() < prefetchTargets && targets.hasNext()) {
+        SRVRecord target = targets.next();
+        prefetched.add(executor.submit(() -> resolveTarget(service, target, parent)));
+      }
+    }
+    
+    private List<Service> await(Future<List<Service>> future) {
+      try {
+        return future.get();
+      } catch (ExecutionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new UncheckedExecutionException(ex.getCause());
+      } catch (InterruptedException ex) {
+        cancelPrefetched();
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Interrupted while resolving service " + service);
+      }
+    }
+    
+    private void cancelPrefetched() {
+      Future<List<Service>> future;
+      while ((future = prefetched.poll()) != null) {
+        future.cancel(true);
       }
     }
-    return null;
   }
   
   @VisibleForTesting
@@ -184,6 +401,8 @@ public class DnsResolver implements ServiceDiscoveryClient {
   
   @Override
   public void close() {
-  
+    if (executor != null) {
+      executor.shutdownNow();
+    }
   }
 }
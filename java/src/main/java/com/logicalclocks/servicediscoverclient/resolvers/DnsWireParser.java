@@ -0,0 +1,220 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.service.Service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of SRV responses in DNS wire format, reading the services straight from the response buffer. Names are
+ * compared in place, following compression pointers, and never decoded; no record objects are created.
+ *
+ * The addresses of the targets are taken from the additional section of the response, which Consul fills with
+ * the A and AAAA records of the targets. When the response cannot be answered this way, because it is truncated,
+ * is an error or lacks the address of a target, the parser returns null and the caller falls back to dnsjava.
+ */
+final class DnsWireParser {
+  private static final int HEADER_SIZE = 12;
+  private static final int FLAG_RESPONSE = 0x8000;
+  private static final int FLAG_TRUNCATED = 0x0200;
+  private static final int RCODE_MASK = 0x000f;
+  private static final int TYPE_A = 1;
+  private static final int TYPE_AAAA = 28;
+  private static final int TYPE_SRV = 33;
+  private static final int CLASS_IN = 1;
+  // Bounds the work on malicious compression pointer loops
+  private static final int MAX_POINTERS = 64;
+
+  private DnsWireParser() {
+  }
+
+  /**
+   * @param response Response positioned at its first byte
+   * @param id Identifier of the query the response must answer
+   * @return The instances of the service, in the order of the SRV records, or null if the response cannot be
+   * answered from the buffer
+   */
+  static List<Service> parseServices(ByteBuffer response, int id, String serviceName, AddressFamily addressFamily) {
+    try {
+      return parse(response.slice(), id, serviceName, addressFamily);
+    } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+      // Malformed response
+      return null;
+    }
+  }
+
+  private static List<Service> parse(ByteBuffer buf, int id, String serviceName, AddressFamily addressFamily) {
+    int flags = u16(buf, 2);
+    if (u16(buf, 0) != id || (flags & FLAG_RESPONSE) == 0 || (flags & FLAG_TRUNCATED) != 0
+        || (flags & RCODE_MASK) != 0) {
+      return null;
+    }
+    int questions = u16(buf, 4);
+    int answers = u16(buf, 6);
+    int authorities = u16(buf, 8);
+    int additionals = u16(buf, 10);
+    int pos = HEADER_SIZE;
+    for (int i = 0; i < questions; i++) {
+      // Name, type and class
+      pos = skipName(buf, pos) + 4;
+    }
+
+    // Offsets of the target names and ports of the SRV records
+    int[] targets = new int[answers];
+    int[] ports = new int[answers];
+    int srvRecords = 0;
+    for (int i = 0; i < answers; i++) {
+      pos = skipName(buf, pos);
+      int rdata = pos + 10;
+      if (u16(buf, pos) == TYPE_SRV && u16(buf, pos + 2) == CLASS_IN) {
+        // Priority, weight, port and target
+        ports[srvRecords] = u16(buf, rdata + 4);
+        targets[srvRecords] = rdata + 6;
+        srvRecords++;
+      }
+      pos = rdata + u16(buf, pos + 8);
+    }
+    if (srvRecords == 0) {
+      return null;
+    }
+    for (int i = 0; i < authorities; i++) {
+      pos = skipName(buf, pos);
+      pos += 10 + u16(buf, pos + 8);
+    }
+
+    // Offsets of the owner names, types and addresses of the address records
+    int[] owners = new int[additionals];
+    int[] types = new int[additionals];
+    int[] addresses = new int[additionals];
+    int addressRecords = 0;
+    for (int i = 0; i < additionals; i++) {
+      int owner = pos;
+      pos = skipName(buf, pos);
+      int type = u16(buf, pos);
+      int length = u16(buf, pos + 8);
+      int rdata = pos + 10;
+      if (u16(buf, pos + 2) == CLASS_IN && ((type == TYPE_A && length == 4) || (type == TYPE_AAAA && length == 16))) {
+        owners[addressRecords] = owner;
+        types[addressRecords] = type;
+        addresses[addressRecords] = rdata;
+        addressRecords++;
+      }
+      pos = rdata + length;
+    }
+
+    int first = addressFamily == AddressFamily.IPV6_ONLY || addressFamily == AddressFamily.IPV6_FIRST
+        ? TYPE_AAAA : TYPE_A;
+    int second = addressFamily.isDualStack() ? (first == TYPE_A ? TYPE_AAAA : TYPE_A) : -1;
+    List<Service> services = new ArrayList<>(srvRecords);
+    for (int i = 0; i < srvRecords; i++) {
+      int found = addAddresses(buf, targets[i], ports[i], first, owners, types, addresses, addressRecords,
+          serviceName, services);
+      if (second != -1) {
+        found += addAddresses(buf, targets[i], ports[i], second, owners, types, addresses, addressRecords,
+            serviceName, services);
+      }
+      if (found == 0) {
+        // Not in the additional section, it has to be looked up
+        return null;
+      }
+    }
+    return services;
+  }
+
+  private static int addAddresses(ByteBuffer buf, int target, int port, int type, int[] owners, int[] types,
+      int[] addresses, int addressRecords, String serviceName, List<Service> services) {
+    int found = 0;
+    for (int j = 0; j < addressRecords; j++) {
+      if (types[j] == type && nameEquals(buf, target, owners[j])) {
+        byte[] address = new byte[type == TYPE_A ? 4 : 16];
+        for (int k = 0; k < address.length; k++) {
+          address[k] = buf.get(addresses[j] + k);
+        }
+        services.add(Service.ofAddressBytes(serviceName, address, port));
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return Offset right after the name at pos
+   */
+  private static int skipName(ByteBuffer buf, int pos) {
+    while (true) {
+      int length = u8(buf, pos);
+      if ((length & 0xc0) == 0xc0) {
+        return pos + 2;
+      }
+      if (length == 0) {
+        return pos + 1;
+      }
+      pos += length + 1;
+    }
+  }
+
+  /**
+   * Case insensitive comparison of the names at offsets a and b
+   */
+  private static boolean nameEquals(ByteBuffer buf, int a, int b) {
+    int pointers = 0;
+    while (pointers < MAX_POINTERS) {
+      int lengthA = u8(buf, a);
+      int lengthB = u8(buf, b);
+      if ((lengthA & 0xc0) == 0xc0) {
+        a = ((lengthA & 0x3f) << 8) | u8(buf, a + 1);
+        pointers++;
+        continue;
+      }
+      if ((lengthB & 0xc0) == 0xc0) {
+        b = ((lengthB & 0x3f) << 8) | u8(buf, b + 1);
+        pointers++;
+        continue;
+      }
+      if (lengthA != lengthB) {
+        return false;
+      }
+      if (lengthA == 0) {
+        return true;
+      }
+      if (a != b) {
+        for (int k = 1; k <= lengthA; k++) {
+          if (toLowerCase(buf.get(a + k)) != toLowerCase(buf.get(b + k))) {
+            return false;
+          }
+        }
+      }
+      a += lengthA + 1;
+      b += lengthB + 1;
+    }
+    throw new IllegalArgumentException("Too many compression pointers");
+  }
+
+  private static byte toLowerCase(byte c) {
+    return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+  }
+
+  private static int u8(ByteBuffer buf, int pos) {
+    return buf.get(pos) & 0xff;
+  }
+
+  private static int u16(ByteBuffer buf, int pos) {
+    return buf.getShort(pos) & 0xffff;
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.collect.ImmutableList;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Composite resolver querying an ordered list of resolvers.
+ *
+ * Without a hedging delay resolvers are tried sequentially and the first answer is returned. With a hedging
+ * delay the next resolver is also queried if the previous one has not answered within the delay, or as soon as
+ * it fails, and whichever answers first wins.
+ *
+ * If every resolver fails, {@link ServiceNotFoundException} is thrown when all of them reported the service as
+ * missing, otherwise the last failure is rethrown. {@link #lookupService} answers the same outcome as a
+ * {@link LookupResult}, querying the resolvers with their own {@code lookupService} so that misses create no
+ * exceptions.
+ */
+public class FailoverResolver implements ServiceDiscoveryClient {
+  private List<ServiceDiscoveryClient> resolvers;
+  private Duration hedgingDelay;
+  private ExecutorService executor;
+
+  public FailoverResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClients() == null || builder.getServiceDiscoveryClients().isEmpty()) {
+      throw new ServiceDiscoveryGenericException("Failover resolver requires at least one ServiceDiscoveryClient");
+    }
+    resolvers = ImmutableList.copyOf(builder.getServiceDiscoveryClients());
+    hedgingDelay = builder.getHedgingDelay();
+    if (hedgingDelay != null && resolvers.size() > 1) {
+      executor = ResolverExecutors.newExecutor("service-discovery-hedging-%d", builder.getVirtualThreads());
+    }
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookupService(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    if (resolvers == null) {
+      return LookupResult.error(new ServiceDiscoveryGenericException("Failover resolver has not been initialized"));
+    }
+    if (executor == null) {
+      return lookupSequential(service);
+    }
+    return lookupHedged(service);
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (resolvers != null) {
+      resolvers.forEach(ServiceDiscoveryClient::close);
+    }
+  }
+
+  /**
+   * Without any instance the result of the last resolver is returned, the miss or error getService throws
+   */
+  private LookupResult lookupSequential(ServiceQuery service) {
+    LookupResult result = null;
+    for (ServiceDiscoveryClient resolver : resolvers) {
+      result = resolver.lookupService(service);
+      if (result.isFound()) {
+        return result;
+      }
+    }
+    return result;
+  }
+
+  private LookupResult lookupHedged(ServiceQuery service) {
+    CompletionService<LookupResult> completionService = new ExecutorCompletionService<>(executor);
+    List<Future<LookupResult>> inFlight = new ArrayList<>(resolvers.size());
+    LookupResult result = null;
+    int failures = 0;
+    long hedgingDelayNanos = hedgingDelay.toNanos();
+    int next = 0;
+    try {
+      while (failures < resolvers.size()) {
+        if (next < resolvers.size() && inFlight.size() - failures == 0) {
+          // Nothing pending, fire the next resolver immediately
+          inFlight.add(submit(completionService, resolvers.get(next++), service));
+        }
+        Future<LookupResult> completed = next < resolvers.size()
+            ? completionService.poll(hedgingDelayNanos, TimeUnit.NANOSECONDS)
+            : completionService.take();
+        if (completed == null) {
+          // The pending resolvers are slow, hedge with the next one
+          inFlight.add(submit(completionService, resolvers.get(next++), service));
+          continue;
+        }
+        try {
+          result = completed.get();
+        } catch (ExecutionException ex) {
+          result = LookupResult.error(ex.getCause() instanceof ServiceDiscoveryException
+              ? (ServiceDiscoveryException) ex.getCause() : new ServiceDiscoveryGenericException(ex.getCause()));
+        }
+        if (result.isFound()) {
+          return result;
+        }
+        failures++;
+      }
+      return result;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Interrupted while resolving service " + service, ex));
+    } finally {
+      for (Future<LookupResult> future : inFlight) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private Future<LookupResult> submit(CompletionService<LookupResult> completionService,
+      ServiceDiscoveryClient resolver, ServiceQuery service) {
+    return completionService.submit(() -> {
+      LookupResult result = resolver.lookupService(service);
+      if (!result.isFound()) {
+        return result;
+      }
+      // Materialize in the worker so that lazy resolution does not happen on the caller's thread
+      try (Stream<Service> services = result.getServices()) {
+        return LookupResult.found(services.collect(Collectors.toList()).stream());
+      }
+    });
+  }
+}
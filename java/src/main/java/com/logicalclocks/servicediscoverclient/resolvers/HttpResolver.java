@@ -20,61 +20,448 @@ import com.logicalclocks.servicediscoverclient.Builder;
 import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
-import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceDetails;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.logicalclocks.servicediscoverclient.tracing.Span;
+import com.logicalclocks.servicediscoverclient.tracing.Tracer;
 import com.orbitz.consul.Consul;
 import com.orbitz.consul.ConsulException;
 import com.orbitz.consul.HealthClient;
 import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ConsistencyMode;
 import com.orbitz.consul.option.ImmutableQueryOptions;
 import com.orbitz.consul.option.QueryOptions;
 import lombok.NonNull;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class HttpResolver implements ServiceDiscoveryClient {
   private Consul client;
+  private boolean sharedClient;
+  // Only with a connection pool from the builder, which must not be evicted by Consul#destroy when closing
+  private ExecutorService consulExecutor;
+  private ConsistencyMode consistencyMode;
+  private String defaultNear;
+  private String zoneMetaKey;
+  private Tracer tracer;
+  
+  // Lightweight path bypassing consul-client
+  private boolean lightweightParsing;
+  private boolean streamingResponses;
+  // Built on first use, resolvers not taking the lightweight path never need it
+  private volatile OkHttpClient httpClient;
+  // Only with a Consul client from the builder, which does not use nor close it
+  private ConnectionPool lightweightConnectionPool;
+  private OkHttpClient.Builder httpClientBuilder;
+  private SSLContext sslContext;
+  private final ReentrantLock httpClientLock = new ReentrantLock();
+  private HttpUrl healthServiceUrl;
+  private HttpUrl preparedQueryUrl;
   
   
   public HttpResolver() {}
   
   @Override
   public void init(@NonNull Builder builder) throws ServiceDiscoveryGenericException {
+    this.lightweightParsing = builder.getHttpLightweightParsing() || builder.getHttpStreamingResponses();
+    this.streamingResponses = builder.getHttpStreamingResponses();
+    ConnectionPool connectionPool;
     if (builder.getClient() != null) {
       this.client = builder.getClient();
+      this.sharedClient = builder.getSharedClient();
+      // consul-client does not expose the address of its agent, which the lightweight path needs
+      if (!builder.getHttpAddressSet()) {
+        if (lightweightParsing) {
+          throw new ServiceDiscoveryGenericException("Lightweight parsing with a Consul client needs the address "
+              + "of its agent");
+        }
+        connectionPool = null;
+      } else {
+        connectionPool = createConnectionPool(builder);
+        if (builder.getHttpConnectionPool() == null) {
+          this.lightweightConnectionPool = connectionPool;
+        }
+      }
     } else {
-      this.client = createConsulClient(builder);
+      connectionPool = createConnectionPool(builder);
+      this.client = createConsulClient(builder, connectionPool);
+    }
+    this.consistencyMode = toConsistencyMode(builder);
+    this.defaultNear = builder.getHttpNear();
+    this.zoneMetaKey = builder.getZoneMetaKey();
+    this.tracer = builder.getTracer();
+    if (connectionPool != null) {
+      initLightweight(builder, connectionPool);
     }
   }
   
+  private void initLightweight(Builder builder, ConnectionPool connectionPool) {
+    this.httpClientBuilder = createHttpClientBuilder(builder, connectionPool);
+    this.sslContext = builder.getHttps() ? builder.getSslContext() : null;
+    this.healthServiceUrl = new HttpUrl.Builder()
+        .scheme(builder.getHttps() ? "https" : "http")
+        .host(builder.getHttpHost())
+        .port(builder.getHttpPort())
+        .addPathSegments("v1/health/service")
+        .build();
+    this.preparedQueryUrl = healthServiceUrl.newBuilder()
+        .encodedPath("/v1/query")
+        .build();
+  }
+  
   @SuppressWarnings("UnstableApiUsage")
-  private Consul createConsulClient(Builder builder) throws ServiceDiscoveryGenericException {
+  private Consul createConsulClient(Builder builder, ConnectionPool connectionPool)
+      throws ServiceDiscoveryGenericException {
     try {
       HostAndPort hostAndPort = HostAndPort.fromParts(builder.getHttpHost(), builder.getHttpPort());
-      return Consul.builder()
+      Consul.Builder consulBuilder = Consul.builder()
           .withHostAndPort(hostAndPort)
           .withHttps(builder.getHttps())
           .withSslContext(builder.getSslContext())
-          .withHostnameVerifier(builder.getHostnameVerifier())
+          .withHostnameVerifier(builder.getHostnameVerifier());
+      if (builder.getHttpConnectTimeout() != null) {
+        consulBuilder.withConnectTimeoutMillis(builder.getHttpConnectTimeout().toMillis());
+      }
+      if (builder.getHttpReadTimeout() != null) {
+        consulBuilder.withReadTimeoutMillis(builder.getHttpReadTimeout().toMillis());
+      }
+      if (builder.getHttpWriteTimeout() != null) {
+        consulBuilder.withWriteTimeoutMillis(builder.getHttpWriteTimeout().toMillis());
+      }
+      if (builder.getHttpConnectionPool() != null) {
+        consulExecutor = ResolverExecutors.newExecutor("service-discovery-consul-%d", false);
+        consulBuilder.withExecutorService(consulExecutor);
+      }
+      return consulBuilder
+          .withConnectionPool(connectionPool)
           .build();
     } catch (ConsulException ex) {
       throw new ServiceDiscoveryGenericException("Could not initialize client", ex);
     }
   }
   
+  private ConsistencyMode toConsistencyMode(Builder builder) {
+    switch (builder.getHttpConsistency()) {
+      case STALE:
+        return ConsistencyMode.STALE;
+      case CONSISTENT:
+        return ConsistencyMode.CONSISTENT;
+      case CACHED:
+        return ConsistencyMode.createCachedConsistencyWithMaxAgeAndStale(
+            Optional.ofNullable(builder.getHttpCacheMaxAge()).map(Duration::getSeconds),
+            Optional.ofNullable(builder.getHttpCacheStaleIfError()).map(Duration::getSeconds));
+      default:
+        return ConsistencyMode.DEFAULT;
+    }
+  }
+  
+  private OkHttpClient.Builder createHttpClientBuilder(Builder builder, ConnectionPool connectionPool) {
+    OkHttpClient.Builder httpBuilder = new OkHttpClient.Builder()
+        .connectionPool(connectionPool);
+    if (builder.getHostnameVerifier() != null) {
+      httpBuilder.hostnameVerifier(builder.getHostnameVerifier());
+    }
+    if (builder.getHttpConnectTimeout() != null) {
+      httpBuilder.connectTimeout(builder.getHttpConnectTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    }
+    if (builder.getHttpReadTimeout() != null) {
+      httpBuilder.readTimeout(builder.getHttpReadTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    }
+    if (builder.getHttpWriteTimeout() != null) {
+      httpBuilder.writeTimeout(builder.getHttpWriteTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    }
+    return httpBuilder;
+  }
+  
+  private OkHttpClient httpClient() throws ServiceDiscoveryGenericException {
+    OkHttpClient current = httpClient;
+    if (current != null) {
+      return current;
+    }
+    httpClientLock.lock();
+    try {
+      if (httpClient == null) {
+        if (sslContext != null) {
+          // OkHttp needs the trust manager on JDK 9+, the same default one consul-client uses
+          httpClientBuilder.sslSocketFactory(sslContext.getSocketFactory(), defaultTrustManager());
+        }
+        httpClient = httpClientBuilder.build();
+      }
+      return httpClient;
+    } finally {
+      httpClientLock.unlock();
+    }
+  }
+  
+  private X509TrustManager defaultTrustManager() throws ServiceDiscoveryGenericException {
+    try {
+      TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      factory.init((KeyStore) null);
+      for (TrustManager trustManager : factory.getTrustManagers()) {
+        if (trustManager instanceof X509TrustManager) {
+          return (X509TrustManager) trustManager;
+        }
+      }
+      throw new ServiceDiscoveryGenericException("No X509 trust manager available");
+    } catch (GeneralSecurityException ex) {
+      throw new ServiceDiscoveryGenericException("Could not initialize trust manager", ex);
+    }
+  }
+  
+  private ConnectionPool createConnectionPool(Builder builder) {
+    if (builder.getHttpConnectionPool() != null) {
+      return builder.getHttpConnectionPool();
+    }
+    // Same defaults as OkHttp
+    int maxIdleConnections = builder.getHttpMaxIdleConnections() != null ? builder.getHttpMaxIdleConnections() : 5;
+    long keepAliveMillis = builder.getHttpKeepAliveDuration() != null
+        ? builder.getHttpKeepAliveDuration().toMillis() : TimeUnit.MINUTES.toMillis(5);
+    return new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS);
+  }
+  
   @Override
   public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
-    QueryOptions queryOptions = ImmutableQueryOptions.builder()
+    return lookup(service).orElseThrow();
+  }
+  
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+  
+  private LookupResult lookup(ServiceQuery service) {
+    try (Span span = tracer.startSpan("http.get_service").setAttribute("service.name", service.getName())) {
+      try {
+        return lookupService(service, span);
+      } catch (ServiceDiscoveryException ex) {
+        span.recordException(ex);
+        return LookupResult.error(ex);
+      } catch (RuntimeException ex) {
+        span.recordException(ex);
+        throw ex;
+      }
+    }
+  }
+  
+  private LookupResult lookupService(ServiceQuery service, Span span) throws ServiceDiscoveryException {
+    // consul-client does not support filter expressions nor executing prepared queries with options, they are
+    // only sent by the lightweight path
+    if (lightweightParsing || service.getFilter() != null || service.isPreparedQuery()) {
+      if (healthServiceUrl == null) {
+        throw new ServiceDiscoveryGenericException("Query " + service.getName() + " with a Consul client needs "
+            + "the address of its agent, see Builder#withClient");
+      }
+      return getServiceLightweight(service, span);
+    }
+    span.setAttribute("http.path", "consul-client");
+    ImmutableQueryOptions.Builder queryOptionsBuilder = ImmutableQueryOptions.builder()
         .addAllTag(service.getTags())
-        .build();
+        .near(Optional.ofNullable(near(service)))
+        .datacenter(Optional.ofNullable(service.getDatacenter()))
+        .consistencyMode(consistencyMode);
+    for (Map.Entry<String, String> nodeMeta : service.getNodeMeta().entrySet()) {
+      queryOptionsBuilder.addNodeMeta(nodeMeta.getKey() + ":" + nodeMeta.getValue());
+    }
+    QueryOptions queryOptions = queryOptionsBuilder.build();
     List<ServiceHealth> serviceHealths = getServiceHealth(service.getName(), queryOptions);
+    span.setAttribute("instances", serviceHealths.size());
     if (serviceHealths.isEmpty()) {
-      throw new ServiceNotFoundException("Could not find service " + service);
+      return LookupResult.notFound(service);
+    }
+    if (service.getPreferredZone() != null) {
+      serviceHealths = preferZone(serviceHealths, service.getPreferredZone());
+    }
+  
+    return LookupResult.found(serviceHealths.stream().map(this::convertToService));
+  }
+  
+  private String near(ServiceQuery service) {
+    return service.getNear() != null ? service.getNear() : defaultNear;
+  }
+  
+  /**
+   * Stable partition of the instances moving the ones in the preferred zone first, so that the round trip time
+   * ordering of Consul is kept within each group.
+   */
+  private List<ServiceHealth> preferZone(List<ServiceHealth> serviceHealths, String preferredZone) {
+    List<ServiceHealth> ordered = new ArrayList<>(serviceHealths.size());
+    List<ServiceHealth> otherZones = new ArrayList<>(serviceHealths.size());
+    for (ServiceHealth serviceHealth : serviceHealths) {
+      String zone = serviceHealth.getNode().getNodeMeta()
+          .map(meta -> meta.get(zoneMetaKey))
+          .orElse(null);
+      if (preferredZone.equals(zone)) {
+        ordered.add(serviceHealth);
+      } else {
+        otherZones.add(serviceHealth);
+      }
     }
+    ordered.addAll(otherZones);
+    return ordered;
+  }
   
-    return serviceHealths.stream().map(this::convertToService);
+  private LookupResult getServiceLightweight(ServiceQuery service, Span span) throws ServiceDiscoveryException {
+    HttpUrl.Builder urlBuilder = service.isPreparedQuery() ? preparedQueryUrl(service) : healthServiceUrl(service);
+    if (near(service) != null) {
+      urlBuilder.addQueryParameter("near", near(service));
+    }
+    if (service.getDatacenter() != null) {
+      urlBuilder.addQueryParameter("dc", service.getDatacenter());
+    }
+    if (consistencyMode.toParam().isPresent()) {
+      urlBuilder.addQueryParameter(consistencyMode.toParam().get(), null);
+    }
+    Request.Builder requestBuilder = new Request.Builder()
+        .url(urlBuilder.build())
+        .get();
+    consistencyMode.getAdditionalHeaders().forEach(requestBuilder::header);
+    Request request = requestBuilder.build();
+    
+    // Ordering by zone needs the whole response
+    if (streamingResponses && service.getPreferredZone() == null) {
+      // Instances are parsed after the span ends, as the stream is consumed
+      span.setAttribute("http.path", "streaming");
+      return getServiceStreaming(service, request);
+    }
+    span.setAttribute("http.path", "lightweight");
+    List<Service> services;
+    try (Response response = httpClient().newCall(request).execute()) {
+      if (isMissingPreparedQuery(service, response)) {
+        return LookupResult.notFound(service);
+      }
+      services = ServiceHealthParser.parse(responseBody(service, response).byteStream(), zoneMetaKey,
+          service.getPreferredZone(), entriesField(service));
+    } catch (IOException ex) {
+      throw new ServiceDiscoveryGenericException(ex);
+    }
+    span.setAttribute("instances", services.size());
+    if (services.isEmpty()) {
+      return LookupResult.notFound(service);
+    }
+    return LookupResult.found(services.stream());
+  }
+  
+  private HttpUrl.Builder healthServiceUrl(ServiceQuery service) {
+    HttpUrl.Builder urlBuilder = healthServiceUrl.newBuilder()
+        .addPathSegment(service.getName())
+        .addQueryParameter("passing", null);
+    for (String tag : service.getTags()) {
+      urlBuilder.addQueryParameter("tag", tag);
+    }
+    for (Map.Entry<String, String> nodeMeta : service.getNodeMeta().entrySet()) {
+      urlBuilder.addQueryParameter("node-meta", nodeMeta.getKey() + ":" + nodeMeta.getValue());
+    }
+    if (service.getFilter() != null) {
+      urlBuilder.addQueryParameter("filter", service.getFilter());
+    }
+    return urlBuilder;
+  }
+  
+  private HttpUrl.Builder preparedQueryUrl(ServiceQuery service) throws ServiceDiscoveryGenericException {
+    if ((service.getTags() != null && !service.getTags().isEmpty()) || !service.getNodeMeta().isEmpty()
+        || service.getFilter() != null) {
+      throw new ServiceDiscoveryGenericException("Tags, node metadata and filter of prepared query "
+          + service.getName() + " are defined by the query");
+    }
+    return preparedQueryUrl.newBuilder()
+        .addPathSegment(service.getName())
+        .addPathSegment("execute");
+  }
+  
+  /**
+   * Prepared queries answer with an object holding the entries, the health API with the array of entries
+   */
+  private String entriesField(ServiceQuery service) {
+    return service.isPreparedQuery() ? "Nodes" : null;
+  }
+  
+  private boolean isMissingPreparedQuery(ServiceQuery service, Response response) {
+    return service.isPreparedQuery() && response.code() == 404;
+  }
+  
+  /**
+   * Services are parsed from the response as the returned stream is consumed. The response is released when
+   * the stream is exhausted or closed.
+   */
+  private LookupResult getServiceStreaming(ServiceQuery service, Request request)
+      throws ServiceDiscoveryException {
+    Response response = null;
+    ServiceHealthParser parser = null;
+    try {
+      response = httpClient().newCall(request).execute();
+      if (isMissingPreparedQuery(service, response)) {
+        close(null, response);
+        return LookupResult.notFound(service);
+      }
+      parser = new ServiceHealthParser(responseBody(service, response).byteStream(), null, entriesField(service));
+      if (!parser.hasNext()) {
+        close(parser, response);
+        return LookupResult.notFound(service);
+      }
+      final Response openResponse = response;
+      final ServiceHealthParser openParser = parser;
+      return LookupResult.found(StreamSupport.stream(
+          Spliterators.spliteratorUnknownSize(parser, Spliterator.ORDERED | Spliterator.NONNULL), false)
+          .onClose(() -> close(openParser, openResponse)));
+    } catch (IOException | UncheckedIOException | ServiceDiscoveryException ex) {
+      close(parser, response);
+      if (ex instanceof ServiceDiscoveryException) {
+        throw (ServiceDiscoveryException) ex;
+      }
+      throw new ServiceDiscoveryGenericException(ex);
+    }
+  }
+  
+  private void close(ServiceHealthParser parser, Response response) {
+    try {
+      if (parser != null) {
+        parser.close();
+      }
+    } catch (IOException ex) {
+      // Ignore it
+    } finally {
+      if (response != null) {
+        response.close();
+      }
+    }
+  }
+  
+  private ResponseBody responseBody(ServiceQuery service, Response response) throws ServiceDiscoveryGenericException {
+    ResponseBody body = response.body();
+    if (!response.isSuccessful() || body == null) {
+      throw new ServiceDiscoveryGenericException("Could not get service " + service + " from Consul, response code: "
+          + response.code());
+    }
+    return body;
   }
   
   private List<ServiceHealth> getServiceHealth(String name, QueryOptions queryOptions)
@@ -90,13 +477,39 @@ public class HttpResolver implements ServiceDiscoveryClient {
   private Service convertToService(ServiceHealth serviceHealth) {
     return Service.of(serviceHealth.getService().getService(),
         serviceHealth.getNode().getAddress(),
-        serviceHealth.getService().getPort());
+        serviceHealth.getService().getPort(),
+        convertToServiceDetails(serviceHealth));
+  }
+  
+  private static ServiceDetails convertToServiceDetails(ServiceHealth serviceHealth) {
+    Map<String, String> taggedAddresses = new HashMap<>(2);
+    serviceHealth.getNode().getTaggedAddresses().ifPresent(addresses -> {
+      addresses.getLan().ifPresent(lan -> taggedAddresses.put("lan", lan));
+      if (addresses.getWan() != null) {
+        taggedAddresses.put("wan", addresses.getWan());
+      }
+    });
+    return ServiceDetails.of(serviceHealth.getService().getId(),
+        serviceHealth.getService().getTags(),
+        serviceHealth.getService().getMeta(),
+        Collections.unmodifiableMap(taggedAddresses),
+        serviceHealth.getNode().getDatacenter().orElse(null));
+  }
+  
+  Consul getClient() {
+    return client;
   }
   
   @Override
   public void close() {
-    if (this.client != null) {
+    if (consulExecutor != null) {
+      // Stop the calls of this client only, the connections of the pool belong to its owner
+      consulExecutor.shutdownNow();
+    } else if (this.client != null && !this.sharedClient) {
       this.client.destroy();
     }
+    if (lightweightConnectionPool != null) {
+      lightweightConnectionPool.evictAll();
+    }
   }
 }
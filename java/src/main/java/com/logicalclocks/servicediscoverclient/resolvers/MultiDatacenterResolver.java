@@ -0,0 +1,171 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.collect.ImmutableList;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.orbitz.consul.ConsulException;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Resolver querying several datacenters in parallel, so that failing over to another datacenter does not wait
+ * for the local one to answer first.
+ *
+ * The datacenters are configured in order of preference. If they are not, the datacenters known to the Consul
+ * servers are used, sorted by the estimated round trip time from the servers of the local datacenter. With
+ * {@link DatacenterFanOut#NEAREST} the instances of the first datacenter having the service are returned, with
+ * {@link DatacenterFanOut#MERGE} the instances of all the datacenters.
+ *
+ * The service is reported as missing only when no datacenter has it and none failed, otherwise the failure of
+ * the nearest failing datacenter is returned. Queries for a given datacenter are passed to the underlying
+ * resolver, by default an HTTP resolver.
+ */
+public class MultiDatacenterResolver implements ServiceDiscoveryClient {
+  private ServiceDiscoveryClient resolver;
+  private List<String> datacenters;
+  private DatacenterFanOut fanOut;
+  private ExecutorService executor;
+
+  public MultiDatacenterResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClient() != null) {
+      resolver = builder.getServiceDiscoveryClient();
+    } else {
+      resolver = new HttpResolver();
+      resolver.init(builder);
+    }
+    if (builder.getDatacenters() != null && !builder.getDatacenters().isEmpty()) {
+      datacenters = ImmutableList.copyOf(builder.getDatacenters());
+    } else if (resolver instanceof HttpResolver) {
+      try {
+        datacenters = ImmutableList.copyOf(((HttpResolver) resolver).getClient().catalogClient().getDatacenters());
+      } catch (ConsulException ex) {
+        resolver.close();
+        throw new ServiceDiscoveryGenericException("Could not get the datacenters", ex);
+      }
+    } else {
+      throw new ServiceDiscoveryGenericException("Datacenters must be configured unless the underlying resolver "
+          + "is an HTTP resolver");
+    }
+    fanOut = builder.getDatacenterFanOut();
+    executor = ResolverExecutors.newExecutor("service-discovery-multi-datacenter-%d", builder.getVirtualThreads());
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookup(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  public List<String> getDatacenters() {
+    return datacenters;
+  }
+
+  private LookupResult lookup(ServiceQuery service) {
+    if (executor == null) {
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Multi datacenter resolver has not been initialized"));
+    }
+    if (service.getDatacenter() != null || datacenters.size() == 1) {
+      return resolver.lookupService(service.getDatacenter() != null ? service
+          : service.toBuilder().datacenter(datacenters.get(0)).build());
+    }
+    List<Future<List<Service>>> inFlight = new ArrayList<>(datacenters.size());
+    try {
+      for (String datacenter : datacenters) {
+        ServiceQuery query = service.toBuilder()
+            .datacenter(datacenter)
+            .build();
+        inFlight.add(executor.submit(() -> resolve(query)));
+      }
+      List<Service> merged = new ArrayList<>();
+      ServiceDiscoveryException failure = null;
+      // Waiting in order of preference, an answer of a far datacenter is only used once the nearer ones missed
+      for (Future<List<Service>> future : inFlight) {
+        try {
+          List<Service> services = future.get();
+          if (services == null) {
+            continue;
+          }
+          if (fanOut == DatacenterFanOut.NEAREST) {
+            return LookupResult.found(services.stream());
+          }
+          merged.addAll(services);
+        } catch (ExecutionException ex) {
+          if (failure == null) {
+            failure = ex.getCause() instanceof ServiceDiscoveryException
+                ? (ServiceDiscoveryException) ex.getCause() : new ServiceDiscoveryGenericException(ex.getCause());
+          }
+        }
+      }
+      if (!merged.isEmpty()) {
+        return LookupResult.found(merged.stream());
+      }
+      return failure != null ? LookupResult.error(failure) : LookupResult.notFound(service);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Interrupted while resolving service " + service, ex));
+    } finally {
+      for (Future<List<Service>> future : inFlight) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * @return The instances or null if the datacenter does not have the service
+   */
+  private List<Service> resolve(ServiceQuery query) throws ServiceDiscoveryException {
+    LookupResult result = resolver.lookupService(query);
+    if (result.getStatus() == LookupResult.Status.NOT_FOUND) {
+      return null;
+    }
+    // Materialize in the worker so that lazy resolution does not happen on the caller's thread
+    return result.orElseThrow().collect(Collectors.toList());
+  }
+}
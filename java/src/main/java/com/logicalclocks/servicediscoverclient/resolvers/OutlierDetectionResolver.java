@@ -0,0 +1,247 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Decorator around another {@link ServiceDiscoveryClient} leaving out instances which callers report as failing,
+ * in between the health checks of Consul.
+ *
+ * Callers report the outcome of their calls to the instances with {@link #reportSuccess}, along with their
+ * latency, and {@link #reportFailure}. An instance is ejected after a number of consecutive failures, or when its
+ * average latency is a multiple of the median latency of the instances returned with it, itself included.
+ * Ejected instances are left out of the answers for the base ejection duration multiplied by the number of times
+ * they have been ejected, up to the maximum ejection duration. At most the configured fraction of the instances of
+ * an answer is left out, so that a widespread problem does not leave callers with no instances at all.
+ */
+public class OutlierDetectionResolver implements ServiceDiscoveryClient {
+  // Weight of the latest latency in the moving average
+  private static final double LATENCY_ALPHA = 0.2;
+  private static final int MINIMUM_LATENCY_PEERS = 3;
+
+  private ServiceDiscoveryClient resolver;
+
+  private int consecutiveFailures;
+  private int minimumRequests;
+  private float latencyFactor;
+  private long baseEjectionNanos;
+  private long maxEjectionNanos;
+  private float maxEjectionPercent;
+  private Cache<Service, InstanceStats> instances;
+
+  private final AtomicLong ejections = new AtomicLong();
+
+  public OutlierDetectionResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClient() == null) {
+      throw new ServiceDiscoveryGenericException("Outlier detection requires an underlying ServiceDiscoveryClient");
+    }
+    resolver = builder.getServiceDiscoveryClient();
+    consecutiveFailures = Math.max(1, builder.getOutlierConsecutiveFailures());
+    minimumRequests = Math.max(1, builder.getOutlierMinimumRequests());
+    latencyFactor = builder.getOutlierLatencyFactor();
+    baseEjectionNanos = builder.getOutlierBaseEjectionDuration().toNanos();
+    maxEjectionNanos = builder.getOutlierMaxEjectionDuration().toNanos();
+    maxEjectionPercent = builder.getOutlierMaxEjectionPercent();
+    Duration retention = builder.getOutlierMaxEjectionDuration().compareTo(Duration.ofMinutes(10)) > 0
+        ? builder.getOutlierMaxEjectionDuration()
+        : Duration.ofMinutes(10);
+    // Forget instances nobody reports about anymore
+    instances = CacheBuilder.newBuilder()
+        .expireAfterAccess(retention)
+        .build();
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookup(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+
+  private LookupResult lookup(ServiceQuery service) {
+    if (resolver == null) {
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Outlier detection resolver has not been initialized"));
+    }
+    LookupResult result = resolver.lookupService(service);
+    if (!result.isFound()) {
+      return result;
+    }
+    List<Service> services = result.getServices().collect(Collectors.toList());
+    long now = nanoTime();
+    if (latencyFactor > 0) {
+      ejectLatencyOutliers(services, now);
+    }
+    int maxEjected = (int) (services.size() * maxEjectionPercent);
+    List<Service> available = new ArrayList<>(services.size());
+    int ejected = 0;
+    for (Service s : services) {
+      if (ejected < maxEjected && isEjected(s, now)) {
+        ejected++;
+      } else {
+        available.add(s);
+      }
+    }
+    return LookupResult.found(available.stream());
+  }
+
+  /**
+   * Report a successful call to an instance
+   */
+  public void reportSuccess(@NonNull Service service, @NonNull Duration latency) {
+    long latencyNanos = latency.toNanos();
+    instances.asMap().compute(service, (s, stats) -> {
+      stats = stats != null ? stats : new InstanceStats();
+      stats.consecutiveFailures = 0;
+      stats.averageLatencyNanos = stats.requests == 0
+          ? latencyNanos
+          : (long) (stats.averageLatencyNanos + LATENCY_ALPHA * (latencyNanos - stats.averageLatencyNanos));
+      if (stats.requests < Integer.MAX_VALUE) {
+        stats.requests++;
+      }
+      if (stats.requests >= minimumRequests) {
+        // Healthy for a while, the next ejection starts from the base duration again
+        stats.ejections = 0;
+      }
+      return stats;
+    });
+  }
+
+  /**
+   * Report a failed call to an instance. Its latency is not reported: failing fast, such as with a refused
+   * connection, must not make an instance look faster than the others.
+   */
+  public void reportFailure(@NonNull Service service) {
+    long now = nanoTime();
+    instances.asMap().compute(service, (s, stats) -> {
+      stats = stats != null ? stats : new InstanceStats();
+      stats.consecutiveFailures++;
+      if (stats.consecutiveFailures >= consecutiveFailures && !stats.isEjected(now)) {
+        eject(stats, now);
+      }
+      return stats;
+    });
+  }
+
+  public boolean isEjected(@NonNull Service service) {
+    return isEjected(service, nanoTime());
+  }
+
+  /**
+   * @return Number of times instances have been ejected
+   */
+  public long getEjectionCount() {
+    return ejections.get();
+  }
+
+  @Override
+  public void close() {
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  @VisibleForTesting
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  private boolean isEjected(Service service, long now) {
+    InstanceStats stats = instances.getIfPresent(service);
+    return stats != null && stats.isEjected(now);
+  }
+
+  private void ejectLatencyOutliers(List<Service> services, long now) {
+    List<Service> candidates = new ArrayList<>(services.size());
+    long[] latencies = new long[services.size()];
+    for (Service s : services) {
+      InstanceStats stats = instances.getIfPresent(s);
+      if (stats != null && stats.requests >= minimumRequests && !stats.isEjected(now)) {
+        latencies[candidates.size()] = stats.averageLatencyNanos;
+        candidates.add(s);
+      }
+    }
+    if (candidates.size() < MINIMUM_LATENCY_PEERS) {
+      return;
+    }
+    long[] sorted = Arrays.copyOf(latencies, candidates.size());
+    Arrays.sort(sorted);
+    double threshold = sorted[sorted.length / 2] * (double) latencyFactor;
+    for (int i = 0; i < candidates.size(); i++) {
+      if (latencies[i] > threshold) {
+        instances.asMap().computeIfPresent(candidates.get(i), (s, stats) -> {
+          if (!stats.isEjected(now)) {
+            eject(stats, now);
+          }
+          return stats;
+        });
+      }
+    }
+  }
+
+  private void eject(InstanceStats stats, long now) {
+    stats.ejections++;
+    stats.ejected = true;
+    stats.ejectedUntil = now + Math.min(baseEjectionNanos * stats.ejections, maxEjectionNanos);
+    // Evaluate the instance afresh once it is back
+    stats.consecutiveFailures = 0;
+    stats.requests = 0;
+    stats.averageLatencyNanos = 0;
+    ejections.incrementAndGet();
+  }
+
+  /**
+   * Outcome of the calls to an instance. Updated only while holding the lock of its cache entry, read without it
+   */
+  private static final class InstanceStats {
+    private volatile int consecutiveFailures;
+    private volatile int requests;
+    private volatile long averageLatencyNanos;
+    private volatile int ejections;
+    private volatile boolean ejected;
+    private volatile long ejectedUntil;
+
+    private boolean isEjected(long now) {
+      return ejected && now - ejectedUntil < 0;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for the background work of the resolvers, such as parallel lookups and hedged requests.
+ *
+ * On JDK 21 and later a virtual thread per task executor can be used instead of a pool of platform threads. The
+ * library targets Java 8, so the executor is looked up reflectively and platform threads are used when virtual
+ * threads are not available.
+ */
+final class ResolverExecutors {
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadPerTaskExecutor();
+
+  private ResolverExecutors() {
+  }
+
+  /**
+   * @param nameFormat Name format of the platform threads, see {@link ThreadFactoryBuilder#setNameFormat}
+   * @param virtualThreads Run every task on a new virtual thread if they are available
+   */
+  static ExecutorService newExecutor(String nameFormat, boolean virtualThreads) {
+    if (virtualThreads && NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+      } catch (IllegalAccessException | InvocationTargetException ex) {
+        // Fall through to platform threads
+      }
+    }
+    return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat(nameFormat)
+        .setDaemon(true)
+        .build());
+  }
+
+  private static Method findVirtualThreadPerTaskExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException ex) {
+      return null;
+    }
+  }
+}
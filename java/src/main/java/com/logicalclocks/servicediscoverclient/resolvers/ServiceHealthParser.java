@@ -0,0 +1,293 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceDetails;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Parses the response of Consul {@code /v1/health/service/:service} with the Jackson streaming API picking
+ * only the fields needed for {@link Service} and its {@link ServiceDetails}, the same the consul-client path
+ * provides: instance ID, tags and metadata, node tagged addresses and datacenter. Health checks, node
+ * metadata and everything else is skipped without being materialized.
+ *
+ * Entries are parsed one at a time as the iterator advances. The underlying input stream is closed when the
+ * last entry has been read or when the parser is closed.
+ */
+class ServiceHealthParser implements Iterator<Service>, Closeable {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final JsonParser parser;
+  private final String zoneMetaKey;
+  private Service next;
+  private String nextZone;
+  private boolean done;
+
+  ServiceHealthParser(InputStream in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * @param zoneMetaKey If not null, the value of this node metadata key is read for every entry
+   */
+  ServiceHealthParser(InputStream in, String zoneMetaKey) throws IOException {
+    this(in, zoneMetaKey, null);
+  }
+
+  /**
+   * @param zoneMetaKey If not null, the value of this node metadata key is read for every entry
+   * @param arrayField If not null, the entries are read from this field of the top level object, such as
+   * {@code Nodes} in the results of prepared queries, instead of a top level array
+   */
+  ServiceHealthParser(InputStream in, String zoneMetaKey, String arrayField) throws IOException {
+    this.zoneMetaKey = zoneMetaKey;
+    parser = JSON_FACTORY.createParser(in);
+    try {
+      if (arrayField != null) {
+        findArrayField(arrayField);
+      } else if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new JsonParseException(parser, "Expected array of service health entries");
+      }
+    } catch (IOException ex) {
+      parser.close();
+      throw ex;
+    }
+  }
+
+  static List<Service> parse(InputStream in) throws IOException {
+    return parse(in, null, null);
+  }
+
+  static List<Service> parse(InputStream in, String zoneMetaKey, String preferredZone) throws IOException {
+    return parse(in, zoneMetaKey, preferredZone, null);
+  }
+
+  /**
+   * @param zoneMetaKey Node metadata key holding the zone of the node
+   * @param preferredZone If not null, instances in this zone are moved first keeping the order of the response
+   * @param arrayField If not null, the field of the top level object holding the entries
+   */
+  static List<Service> parse(InputStream in, String zoneMetaKey, String preferredZone, String arrayField)
+      throws IOException {
+    List<Service> services = new ArrayList<>();
+    List<Service> otherZones = preferredZone != null ? new ArrayList<>() : services;
+    try (ServiceHealthParser parser = new ServiceHealthParser(in, preferredZone != null ? zoneMetaKey : null,
+        arrayField)) {
+      while (parser.advance()) {
+        if (preferredZone != null && !preferredZone.equals(parser.nextZone)) {
+          otherZones.add(parser.next);
+        } else {
+          services.add(parser.next);
+        }
+        parser.next = null;
+      }
+    }
+    if (otherZones != services) {
+      services.addAll(otherZones);
+    }
+    return services;
+  }
+
+  @Override
+  public boolean hasNext() {
+    try {
+      return advance();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  @Override
+  public Service next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Service service = next;
+    next = null;
+    return service;
+  }
+
+  @Override
+  public void close() throws IOException {
+    done = true;
+    parser.close();
+  }
+
+  private boolean advance() throws IOException {
+    if (next != null) {
+      return true;
+    }
+    if (done) {
+      return false;
+    }
+    try {
+      if (parser.nextToken() == JsonToken.START_OBJECT) {
+        nextZone = null;
+        next = parseEntry();
+        return true;
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+    close();
+    return false;
+  }
+
+  private void findArrayField(String arrayField) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new JsonParseException(parser, "Expected object with field " + arrayField);
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (arrayField.equals(field) && value == JsonToken.START_ARRAY) {
+        return;
+      }
+      if (arrayField.equals(field) && value == JsonToken.VALUE_NULL) {
+        // No entries
+        done = true;
+        return;
+      }
+      parser.skipChildren();
+    }
+    throw new JsonParseException(parser, "Expected array of service health entries in field " + arrayField);
+  }
+
+  private Service parseEntry() throws IOException {
+    String name = null;
+    String address = null;
+    Integer port = null;
+    String id = null;
+    List<String> tags = Collections.emptyList();
+    Map<String, String> meta = Collections.emptyMap();
+    Map<String, String> taggedAddresses = Collections.emptyMap();
+    String datacenter = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("Node".equals(field) && value == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String nodeField = parser.getCurrentName();
+          parser.nextToken();
+          if ("Address".equals(nodeField)) {
+            address = parser.getValueAsString();
+          } else if ("Datacenter".equals(nodeField)) {
+            datacenter = parser.getValueAsString();
+          } else if ("TaggedAddresses".equals(nodeField) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            taggedAddresses = parseTaggedAddresses();
+          } else if (zoneMetaKey != null && "Meta".equals(nodeField)
+              && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            nextZone = parseMetaValue(zoneMetaKey);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else if ("Service".equals(field) && value == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String serviceField = parser.getCurrentName();
+          parser.nextToken();
+          if ("Service".equals(serviceField)) {
+            name = parser.getValueAsString();
+          } else if ("ID".equals(serviceField)) {
+            id = parser.getValueAsString();
+          } else if ("Tags".equals(serviceField) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+            tags = parseTags();
+          } else if ("Port".equals(serviceField)) {
+            port = parser.getValueAsInt();
+          } else if ("Meta".equals(serviceField) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            meta = parseStringMap();
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return Service.of(name, address, port, ServiceDetails.of(id, tags, meta, taggedAddresses, datacenter));
+  }
+
+  private List<String> parseTags() throws IOException {
+    List<String> tags = new ArrayList<>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == null) {
+        throw new JsonParseException(parser, "Unexpected end of service tags");
+      }
+      tags.add(parser.getValueAsString());
+    }
+    return tags;
+  }
+
+  private Map<String, String> parseStringMap() throws IOException {
+    Map<String, String> values = new HashMap<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String key = parser.getCurrentName();
+      parser.nextToken();
+      values.put(key, parser.getValueAsString());
+      parser.skipChildren();
+    }
+    return Collections.unmodifiableMap(values);
+  }
+
+  /**
+   * Only the {@code lan} and {@code wan} addresses are kept, as consul-client does
+   */
+  private Map<String, String> parseTaggedAddresses() throws IOException {
+    Map<String, String> addresses = new HashMap<>(2);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String tag = parser.getCurrentName();
+      parser.nextToken();
+      if (("lan".equals(tag) || "wan".equals(tag)) && parser.getValueAsString() != null) {
+        addresses.put(tag, parser.getValueAsString());
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return Collections.unmodifiableMap(addresses);
+  }
+
+  private String parseMetaValue(String key) throws IOException {
+    String value = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String metaKey = parser.getCurrentName();
+      parser.nextToken();
+      if (key.equals(metaKey)) {
+        value = parser.getValueAsString();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.collect.ImmutableList;
+import com.logicalclocks.servicediscoverclient.service.Service;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of the full instance set of a service answering tag subset queries locally. Every tag maps
+ * to a bitmap of the positions of the instances carrying it, a query intersects the bitmaps of its tags.
+ *
+ * Instances are returned in the order of the full set. Being immutable, an index is safe to query concurrently
+ * without locking.
+ */
+class ServiceTagIndex {
+  private final List<Service> services;
+  private final Map<String, BitSet> tagBitmaps;
+
+  ServiceTagIndex(List<Service> services) {
+    this.services = ImmutableList.copyOf(services);
+    this.tagBitmaps = new HashMap<>();
+    for (int i = 0; i < this.services.size(); i++) {
+      for (String tag : this.services.get(i).getTags()) {
+        tagBitmaps.computeIfAbsent(tag, t -> new BitSet(this.services.size())).set(i);
+      }
+    }
+  }
+
+  /**
+   * @return Instances carrying all of the tags, in the order of the full set
+   */
+  List<Service> query(Set<String> tags) {
+    if (tags == null || tags.isEmpty()) {
+      return services;
+    }
+    BitSet matches = null;
+    for (String tag : tags) {
+      BitSet bitmap = tagBitmaps.get(tag);
+      if (bitmap == null) {
+        return ImmutableList.of();
+      }
+      if (matches == null) {
+        matches = (BitSet) bitmap.clone();
+      } else {
+        matches.and(bitmap);
+      }
+      if (matches.isEmpty()) {
+        return ImmutableList.of();
+      }
+    }
+    ImmutableList.Builder<Service> result = ImmutableList.builderWithExpectedSize(matches.cardinality());
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      result.add(services.get(i));
+    }
+    return result.build();
+  }
+}
@@ -0,0 +1,377 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.util.concurrent.Striped;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Resolver caching the answers of another resolver in a memory-mapped file shared by all the processes of a
+ * host using the same path. The first process to miss or find an expired answer loads it from the underlying
+ * resolver and stores it in the file, the other processes read it from there instead of querying the agent.
+ *
+ * The file is a table of fixed size slots, a query maps to one slot and a colliding query replaces it. Writers
+ * of a slot exclude each other with a lock on the region of the slot in the file, so concurrent misses of the
+ * same query from several processes cause a single lookup. Readers do not lock: every slot carries a sequence
+ * number, odd while the slot is written, and a checksum of its content. A reader which sees the sequence number
+ * change or the checksum mismatch treats the slot as a miss, the checksum also covering the ordering of the
+ * stores to the mapping which Java 8 does not guarantee across processes.
+ *
+ * Only the name, address and port of the instances are shared, not their details. Answers are keyed by the
+ * name, tags, datacenter and prepared query flag of the query. Queries with other options, and answers too
+ * large for a slot, are passed to the underlying resolver.
+ */
+public class SharedCacheResolver implements ServiceDiscoveryClient {
+  private static final int MAGIC = 0x53444331;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  // Header fields
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int SLOTS_OFFSET = 8;
+  private static final int SLOT_SIZE_OFFSET = 12;
+  // Slot fields
+  private static final int SEQUENCE_OFFSET = 0;
+  private static final int LOADED_AT_OFFSET = 8;
+  private static final int LENGTH_OFFSET = 16;
+  private static final int CRC_OFFSET = 20;
+  private static final int PAYLOAD_OFFSET = 24;
+  private static final int READ_ATTEMPTS = 3;
+  // File locks are held by the whole JVM, slots are also locked within the JVM so that resolvers sharing a
+  // file do not lock the same region twice
+  private static final Striped<Lock> SLOT_LOCKS = Striped.lock(64);
+
+  private ServiceDiscoveryClient resolver;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private String path;
+  private int slots;
+  private int slotSize;
+  private long expirationMillis;
+
+  public SharedCacheResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClient() == null || builder.getSharedCachePath() == null) {
+      throw new ServiceDiscoveryGenericException("Shared cache resolver needs a resolver to cache and the path "
+          + "of the shared file");
+    }
+    if (builder.getSharedCacheSlots() <= 0 || builder.getSharedCacheSlotSize() <= PAYLOAD_OFFSET) {
+      throw new ServiceDiscoveryGenericException("Shared cache slots and slot size must be positive");
+    }
+    resolver = builder.getServiceDiscoveryClient();
+    expirationMillis = builder.getCacheExpiration().toMillis();
+    Path file = builder.getSharedCachePath().toAbsolutePath().normalize();
+    path = file.toString();
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      mapFile(builder.getSharedCacheSlots(), builder.getSharedCacheSlotSize());
+    } catch (IOException ex) {
+      close();
+      throw new ServiceDiscoveryGenericException("Could not map shared cache file " + path, ex);
+    } catch (ServiceDiscoveryGenericException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Map the file, creating the table if the file is new or empty. The layout of an existing table is kept and
+   * files which are not a shared cache are never overwritten.
+   */
+  private void mapFile(int newSlots, int newSlotSize) throws IOException, ServiceDiscoveryGenericException {
+    Lock lock = SLOT_LOCKS.get(path);
+    lock.lock();
+    try {
+      FileLock headerLock = channel.lock(0, HEADER_SIZE, false);
+      try {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() == 0) {
+          header.putInt(MAGIC_OFFSET, MAGIC);
+          header.putInt(VERSION_OFFSET, VERSION);
+          header.putInt(SLOTS_OFFSET, newSlots);
+          header.putInt(SLOT_SIZE_OFFSET, newSlotSize);
+          // Extend the file with zeroes, a zero sequence number and length is an empty slot
+          channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) newSlots * newSlotSize - 1);
+          channel.write(header, 0);
+          header.clear();
+        } else {
+          channel.read(header, 0);
+          header.flip();
+          if (header.remaining() < HEADER_SIZE || header.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new ServiceDiscoveryGenericException("File " + path + " exists and is not a shared cache file");
+          }
+        }
+        if (header.getInt(VERSION_OFFSET) != VERSION) {
+          throw new ServiceDiscoveryGenericException("Unsupported shared cache file version "
+              + header.getInt(VERSION_OFFSET) + " in " + path);
+        }
+        slots = header.getInt(SLOTS_OFFSET);
+        slotSize = header.getInt(SLOT_SIZE_OFFSET);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * slotSize);
+      } finally {
+        headerLock.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookupService(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    if (buffer == null || resolver == null) {
+      return LookupResult.error(
+          new ServiceDiscoveryGenericException("Shared cache resolver has not been initialized"));
+    }
+    if (service.getFilter() != null || !service.getNodeMeta().isEmpty() || service.getNear() != null
+        || service.getPreferredZone() != null) {
+      return resolver.lookupService(service);
+    }
+    byte[] key = key(service);
+    int slot = (murmurMix(key) & Integer.MAX_VALUE) % slots;
+    List<Service> cached = read(slot, key, service.getName());
+    if (cached != null) {
+      return LookupResult.found(cached.stream());
+    }
+    Lock lock = SLOT_LOCKS.get(path + "#" + slot);
+    lock.lock();
+    try {
+      FileLock slotLock = channel.lock(slotOffset(slot), slotSize, false);
+      try {
+        // Another process may have loaded it while waiting for the lock
+        cached = read(slot, key, service.getName());
+        if (cached != null) {
+          return LookupResult.found(cached.stream());
+        }
+        LookupResult result = resolver.lookupService(service);
+        if (!result.isFound()) {
+          return result;
+        }
+        List<Service> services;
+        try (Stream<Service> answer = result.getServices()) {
+          services = answer.collect(Collectors.toList());
+        }
+        write(slot, key, services);
+        return LookupResult.found(services.stream());
+      } finally {
+        slotLock.release();
+      }
+    } catch (IOException ex) {
+      return LookupResult.error(new ServiceDiscoveryGenericException("Could not lock shared cache file " + path, ex));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (channel != null) {
+      try {
+        // The mapping stays valid until the buffer is garbage collected
+        channel.close();
+      } catch (IOException ex) {
+        // Ignore it
+      }
+    }
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  /**
+   * @return The answer stored in the slot for the query or null if there is none, it expired or it was being
+   * written
+   */
+  private List<Service> read(int slot, byte[] key, String name) {
+    ByteBuffer view = slotView(slot);
+    for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+      long sequence = view.getLong(SEQUENCE_OFFSET);
+      if ((sequence & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      long loadedAt = view.getLong(LOADED_AT_OFFSET);
+      int length = view.getInt(LENGTH_OFFSET);
+      int crc = view.getInt(CRC_OFFSET);
+      if (length <= 0 || length > slotSize - PAYLOAD_OFFSET) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      view.position(PAYLOAD_OFFSET);
+      view.get(payload);
+      if (view.getLong(SEQUENCE_OFFSET) != sequence) {
+        continue;
+      }
+      if (crc(payload) != crc) {
+        // Torn or reordered write
+        continue;
+      }
+      if (System.currentTimeMillis() - loadedAt >= expirationMillis) {
+        return null;
+      }
+      return decode(ByteBuffer.wrap(payload), key, name);
+    }
+    return null;
+  }
+
+  private void write(int slot, byte[] key, List<Service> services) {
+    byte[] payload = encode(key, services);
+    if (payload == null) {
+      // Does not fit in a slot
+      return;
+    }
+    ByteBuffer view = slotView(slot);
+    long sequence = view.getLong(SEQUENCE_OFFSET);
+    // Recover from a writer which died half way
+    sequence += (sequence & 1) != 0 ? 1 : 2;
+    view.putLong(SEQUENCE_OFFSET, sequence - 1);
+    view.putLong(LOADED_AT_OFFSET, System.currentTimeMillis());
+    view.putInt(LENGTH_OFFSET, payload.length);
+    view.putInt(CRC_OFFSET, crc(payload));
+    view.position(PAYLOAD_OFFSET);
+    view.put(payload);
+    view.putLong(SEQUENCE_OFFSET, sequence);
+  }
+
+  private ByteBuffer slotView(int slot) {
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) slotOffset(slot));
+    view.limit((int) slotOffset(slot) + slotSize);
+    return view.slice();
+  }
+
+  private long slotOffset(int slot) {
+    return HEADER_SIZE + (long) slot * slotSize;
+  }
+
+  /**
+   * Payload: key length, key, instance count and for every instance its address and port
+   */
+  private byte[] encode(byte[] key, List<Service> services) {
+    ByteBuffer payload = ByteBuffer.allocate(slotSize - PAYLOAD_OFFSET);
+    try {
+      payload.putShort((short) key.length);
+      payload.put(key);
+      payload.putInt(services.size());
+      for (Service service : services) {
+        byte[] address = service.getAddress() != null
+            ? service.getAddress().getBytes(StandardCharsets.UTF_8)
+            : new byte[0];
+        payload.putShort((short) address.length);
+        payload.put(address);
+        payload.putInt(service.getPort() != null ? service.getPort() : -1);
+      }
+    } catch (BufferOverflowException ex) {
+      return null;
+    }
+    byte[] bytes = new byte[payload.position()];
+    payload.flip();
+    payload.get(bytes);
+    return bytes;
+  }
+
+  private List<Service> decode(ByteBuffer payload, byte[] key, String name) {
+    try {
+      byte[] storedKey = new byte[payload.getShort() & 0xffff];
+      payload.get(storedKey);
+      if (!Arrays.equals(key, storedKey)) {
+        // Colliding query
+        return null;
+      }
+      int count = payload.getInt();
+      List<Service> services = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] address = new byte[payload.getShort() & 0xffff];
+        payload.get(address);
+        int port = payload.getInt();
+        services.add(Service.of(name, address.length > 0 ? new String(address, StandardCharsets.UTF_8) : null,
+            port >= 0 ? port : null));
+      }
+      return Collections.unmodifiableList(services);
+    } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+      return null;
+    }
+  }
+
+  private byte[] key(ServiceQuery service) {
+    StringBuilder key = new StringBuilder(service.getName());
+    // Separators below any character of a name or tag keep the parts of the key apart
+    if (service.getDatacenter() != null) {
+      key.append('\u0001').append(service.getDatacenter());
+    }
+    if (service.isPreparedQuery()) {
+      key.append('\u0002');
+    }
+    if (service.getTags() != null) {
+      // Same key whatever the order of the tags
+      for (String tag : new TreeSet<>(service.getTags())) {
+        key.append('\0').append(tag);
+      }
+    }
+    return key.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private static int murmurMix(byte[] key) {
+    int h = Arrays.hashCode(key);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
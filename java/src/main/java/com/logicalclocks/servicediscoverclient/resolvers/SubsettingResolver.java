@@ -0,0 +1,138 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.resolvers;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Decorator around another {@link ServiceDiscoveryClient} returning a deterministic subset of the instances to
+ * every client, so that clients do not all connect to every instance.
+ *
+ * The subset is chosen with rendezvous hashing: every instance is scored by hashing it together with the client
+ * identifier and the instances with the highest scores are returned, in the order of the underlying answer. Each
+ * instance is then picked by about the same share of the clients, and the subset only changes when one of its
+ * instances leaves or a new instance outscores one of them.
+ */
+public class SubsettingResolver implements ServiceDiscoveryClient {
+  private static final HashFunction SCORE_HASH = Hashing.murmur3_128();
+
+  private ServiceDiscoveryClient resolver;
+  private String clientId;
+  private int subsetSize;
+
+  public SubsettingResolver() {
+  }
+
+  @Override
+  public void init(@NonNull Builder builder) throws ServiceDiscoveryException {
+    if (builder.getServiceDiscoveryClient() == null) {
+      throw new ServiceDiscoveryGenericException("Subsetting requires an underlying ServiceDiscoveryClient");
+    }
+    if (builder.getSubsetSize() <= 0) {
+      throw new ServiceDiscoveryGenericException("Subset size must be positive");
+    }
+    resolver = builder.getServiceDiscoveryClient();
+    subsetSize = builder.getSubsetSize();
+    if (builder.getSubsetClientId() != null) {
+      clientId = builder.getSubsetClientId();
+    } else {
+      try {
+        clientId = InetAddress.getLocalHost().getHostName();
+      } catch (UnknownHostException ex) {
+        throw new ServiceDiscoveryGenericException("Could not determine the host name, set the subset client ID", ex);
+      }
+    }
+  }
+
+  @Override
+  public Stream<Service> getService(@NonNull ServiceQuery service) throws ServiceDiscoveryException {
+    return lookup(service).orElseThrow();
+  }
+
+  @Override
+  public LookupResult lookupService(@NonNull ServiceQuery service) {
+    return lookup(service);
+  }
+
+  private LookupResult lookup(ServiceQuery service) {
+    if (resolver == null) {
+      return LookupResult.error(new ServiceDiscoveryGenericException("Subsetting resolver has not been initialized"));
+    }
+    LookupResult result = resolver.lookupService(service);
+    if (!result.isFound()) {
+      return result;
+    }
+    List<Service> services = result.getServices().collect(Collectors.toList());
+    if (services.size() <= subsetSize) {
+      return LookupResult.found(services.stream());
+    }
+    long[] scores = new long[services.size()];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = score(services.get(i));
+    }
+    // Lowest score in the subset, ties with it are broken by position so the subset has exactly subsetSize instances
+    long[] sorted = scores.clone();
+    Arrays.sort(sorted);
+    long threshold = sorted[sorted.length - subsetSize];
+    int ties = subsetSize;
+    for (long score : scores) {
+      if (score > threshold) {
+        ties--;
+      }
+    }
+    List<Service> subset = new ArrayList<>(subsetSize);
+    for (int i = 0; i < scores.length; i++) {
+      if (scores[i] > threshold || (scores[i] == threshold && ties-- > 0)) {
+        subset.add(services.get(i));
+      }
+    }
+    return LookupResult.found(subset.stream());
+  }
+
+  @Override
+  public void close() {
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  private long score(Service instance) {
+    return SCORE_HASH.newHasher()
+        .putString(clientId, StandardCharsets.UTF_8)
+        .putString(String.valueOf(instance.getAddress()), StandardCharsets.UTF_8)
+        .putInt(instance.getPort() != null ? instance.getPort() : -1)
+        .hash()
+        .asLong();
+  }
+}
@@ -18,5 +18,12 @@ package com.logicalclocks.servicediscoverclient.resolvers;
 public enum Type {
   DNS,
   HTTP,
-  CACHING
+  CACHING,
+  CIRCUIT_BREAKER,
+  FAILOVER,
+  OUTLIER_DETECTION,
+  SUBSETTING,
+  CATALOG_MIRROR,
+  SHARED_CACHE,
+  MULTI_DATACENTER
 }
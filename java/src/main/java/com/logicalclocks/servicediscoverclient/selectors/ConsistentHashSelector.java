@@ -0,0 +1,252 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.selectors;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.resolvers.CachingResolver;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Selects an instance of a service by key with consistent hashing, so that the same key keeps going to the same
+ * instance and only the keys of the instances which come or go move.
+ *
+ * Every instance is placed on a hash ring at a number of points. The ring is immutable and published through a
+ * volatile field, so {@link #select} is lock-free and does not allocate. When the instance set changes only the
+ * points of the added and removed instances are computed and merged into a new ring. The ring is built from the
+ * instances resolved when the selector is created. With a {@link CachingResolver} it is then updated every time
+ * the cache loads the query, emptied when the service is no longer found, otherwise call {@link #update()}
+ * periodically.
+ */
+public class ConsistentHashSelector implements AutoCloseable {
+  private static final HashFunction POINT_HASH = Hashing.murmur3_128();
+  private static final Ring EMPTY = new Ring(new long[0], new Service[0], Collections.emptySet());
+
+  private final ServiceDiscoveryClient client;
+  private final ServiceQuery service;
+  private final int pointsPerInstance;
+  private final Consumer<List<Service>> refreshListener = this::update;
+  // Serializes ring updates, lookups do not lock
+  private final ReentrantLock updateLock = new ReentrantLock();
+  private volatile Ring ring = EMPTY;
+
+  public ConsistentHashSelector(@NonNull ServiceDiscoveryClient client, @NonNull ServiceQuery service)
+      throws ServiceDiscoveryException {
+    this(client, service, 100);
+  }
+
+  /**
+   * @param pointsPerInstance Points of every instance on the ring, more points spread the keys more evenly
+   * @throws ServiceDiscoveryException If the service could not be resolved, a missing service leaves the ring
+   * empty
+   */
+  public ConsistentHashSelector(@NonNull ServiceDiscoveryClient client, @NonNull ServiceQuery service,
+      int pointsPerInstance) throws ServiceDiscoveryException {
+    if (pointsPerInstance <= 0) {
+      throw new IllegalArgumentException("Points per instance must be positive");
+    }
+    this.client = client;
+    this.service = service;
+    this.pointsPerInstance = pointsPerInstance;
+    if (client instanceof CachingResolver) {
+      ((CachingResolver) client).addRefreshListener(service, refreshListener);
+    }
+    try {
+      update();
+    } catch (ServiceDiscoveryException | RuntimeException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Resolve the service and update the ring if the instance set has changed
+   */
+  public void update() throws ServiceDiscoveryException {
+    LookupResult result = client.lookupService(service);
+    if (result.getStatus() == LookupResult.Status.ERROR) {
+      throw result.getError();
+    }
+    // Empty if the service was not found
+    try (Stream<Service> services = result.getServices()) {
+      update(services.collect(Collectors.toList()));
+    }
+  }
+
+  /**
+   * Update the ring if the instance set has changed
+   */
+  public void update(@NonNull List<Service> services) {
+    Set<Service> instances = new HashSet<>(services);
+    updateLock.lock();
+    try {
+      Ring current = ring;
+      if (instances.equals(current.instances)) {
+        return;
+      }
+      Set<Service> removed = new HashSet<>(current.instances);
+      removed.removeAll(instances);
+      Set<Service> added = new HashSet<>(instances);
+      added.removeAll(current.instances);
+      ring = current.update(removed, points(added), instances);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  /**
+   * @return The instance key is mapped to or null if there are no instances
+   */
+  public Service select(@NonNull CharSequence key) {
+    return select(hash(key));
+  }
+
+  /**
+   * @param keyHash 64 bit hash of the key
+   * @return The instance the key is mapped to or null if there are no instances
+   */
+  public Service select(long keyHash) {
+    Ring r = ring;
+    if (r.points.length == 0) {
+      return null;
+    }
+    int i = Arrays.binarySearch(r.points, keyHash);
+    if (i < 0) {
+      i = -i - 1;
+      if (i == r.points.length) {
+        i = 0;
+      }
+    }
+    return r.owners[i];
+  }
+
+  /**
+   * @return Number of instances on the ring
+   */
+  public int size() {
+    return ring.instances.size();
+  }
+
+  @Override
+  public void close() {
+    if (client instanceof CachingResolver) {
+      ((CachingResolver) client).removeRefreshListener(service, refreshListener);
+    }
+  }
+
+  /**
+   * FNV-1a over the chars of the key finalized with the MurmurHash3 mixer, without allocating
+   */
+  static long hash(CharSequence key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * @return Points of the instances sorted by position
+   */
+  private Ring points(Set<Service> instances) {
+    long[] points = new long[instances.size() * pointsPerInstance];
+    Service[] owners = new Service[points.length];
+    int i = 0;
+    for (Service instance : instances) {
+      String id = instance.getAddress() + ":" + instance.getPort();
+      for (int p = 0; p < pointsPerInstance; p++) {
+        points[i] = POINT_HASH.hashString(id + "#" + p, StandardCharsets.UTF_8).asLong();
+        owners[i++] = instance;
+      }
+    }
+    Integer[] order = new Integer[points.length];
+    for (int j = 0; j < order.length; j++) {
+      order[j] = j;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+    long[] sortedPoints = new long[points.length];
+    Service[] sortedOwners = new Service[points.length];
+    for (int j = 0; j < order.length; j++) {
+      sortedPoints[j] = points[order[j]];
+      sortedOwners[j] = owners[order[j]];
+    }
+    return new Ring(sortedPoints, sortedOwners, instances);
+  }
+
+  private static final class Ring {
+    private final long[] points;
+    private final Service[] owners;
+    private final Set<Service> instances;
+
+    private Ring(long[] points, Service[] owners, Set<Service> instances) {
+      this.points = points;
+      this.owners = owners;
+      this.instances = instances;
+    }
+
+    /**
+     * @return New ring without the points of removed merged with the sorted points of added
+     */
+    private Ring update(Set<Service> removed, Ring added, Set<Service> instances) {
+      int kept = 0;
+      for (Service owner : owners) {
+        if (!removed.contains(owner)) {
+          kept++;
+        }
+      }
+      long[] mergedPoints = new long[kept + added.points.length];
+      Service[] mergedOwners = new Service[mergedPoints.length];
+      int i = 0;
+      int j = 0;
+      int k = 0;
+      while (k < mergedPoints.length) {
+        while (i < points.length && removed.contains(owners[i])) {
+          i++;
+        }
+        if (j == added.points.length || (i < points.length && points[i] <= added.points[j])) {
+          mergedPoints[k] = points[i];
+          mergedOwners[k++] = owners[i++];
+        } else {
+          mergedPoints[k] = added.points[j];
+          mergedOwners[k++] = added.owners[j++];
+        }
+      }
+      return new Ring(mergedPoints, mergedOwners, instances);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.service;
+
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+
+import java.util.stream.Stream;
+
+/**
+ * Outcome of a lookup: the instances of the service, the service not being found or an error. Unlike
+ * {@link com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient#getService} a missing service is an
+ * ordinary result rather than an exception, so frequent misses cost no more than hits.
+ */
+public final class LookupResult {
+  public enum Status {
+    FOUND,
+    NOT_FOUND,
+    ERROR
+  }
+
+  private final Status status;
+  private final Stream<Service> services;
+  private final ServiceQuery query;
+  private final ServiceDiscoveryException error;
+
+  private LookupResult(Status status, Stream<Service> services, ServiceQuery query,
+      ServiceDiscoveryException error) {
+    this.status = status;
+    this.services = services;
+    this.query = query;
+    this.error = error;
+  }
+
+  public static LookupResult found(Stream<Service> services) {
+    return new LookupResult(Status.FOUND, services, null, null);
+  }
+
+  public static LookupResult notFound(ServiceQuery query) {
+    return new LookupResult(Status.NOT_FOUND, null, query, null);
+  }
+
+  public static LookupResult error(ServiceDiscoveryException error) {
+    return new LookupResult(Status.ERROR, null, null, error);
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isFound() {
+    return status == Status.FOUND;
+  }
+
+  /**
+   * @return The instances if the service was found, otherwise an empty stream
+   */
+  public Stream<Service> getServices() {
+    return services != null ? services : Stream.empty();
+  }
+
+  /**
+   * @return The error if the lookup failed, otherwise null
+   */
+  public ServiceDiscoveryException getError() {
+    return error;
+  }
+
+  /**
+   * @return The instances if the service was found
+   * @throws ServiceNotFoundException If the service was not found, the exception carries no stack trace
+   * @throws ServiceDiscoveryException The error of the lookup
+   */
+  public Stream<Service> orElseThrow() throws ServiceDiscoveryException {
+    switch (status) {
+      case FOUND:
+        return services;
+      case NOT_FOUND:
+        throw new ServiceNotFoundException(query);
+      default:
+        throw error;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LookupResult(status=" + status + (query != null ? ", query=" + query : "")
+        + (error != null ? ", error=" + error : "") + ")";
+  }
+}
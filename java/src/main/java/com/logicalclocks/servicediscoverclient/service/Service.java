@@ -15,11 +15,238 @@
  */
 package com.logicalclocks.servicediscoverclient.service;
 
-import lombok.Value;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.net.InetAddresses;
 
-@Value(staticConstructor = "of")
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A service instance. Name, address and port identify the instance, the rest of the registration details are
+ * provided by the resolver the instance was resolved from, if it provides them.
+ *
+ * Instances are kept compact as caches may hold many of them: names and host names are interned so that
+ * identical strings are shared between queries and refreshes, IPv4 addresses are packed in an int, IPv6
+ * addresses in a byte array and the port is unboxed.
+ */
 public final class Service {
-  String name;
-  String address;
-  Integer port;
+  private static final Interner<String> STRINGS = Interners.newWeakInterner();
+  // Marker of an IPv4 address packed in ipv4
+  private static final Object IPV4 = new Object();
+
+  private final String name;
+  // IPV4, IPv6 address as byte[16] or host name as String
+  private final Object address;
+  private final int ipv4;
+  private final int port;
+  private final ServiceDetails details;
+
+  private Service(String name, Object address, int ipv4, int port, ServiceDetails details) {
+    this.name = name;
+    this.address = address;
+    this.ipv4 = ipv4;
+    this.port = port;
+    this.details = details;
+  }
+
+  public static Service of(String name, String address, Integer port) {
+    return of(name, address, port, ServiceDetails.EMPTY);
+  }
+
+  public static Service of(String name, String address, Integer port, ServiceDetails details) {
+    String internedName = name != null ? STRINGS.intern(name) : null;
+    int unboxedPort = port != null ? port : -1;
+    ServiceDetails nonNullDetails = details != null ? details : ServiceDetails.EMPTY;
+    if (address != null) {
+      long packed = packIPv4(address);
+      if (packed >= 0) {
+        return new Service(internedName, IPV4, (int) packed, unboxedPort, nonNullDetails);
+      }
+      if (address.indexOf(':') >= 0 && InetAddresses.isInetAddress(address)) {
+        byte[] ipv6 = InetAddresses.forString(address).getAddress();
+        // Only pack canonical literals so that getAddress returns what was given
+        if (ipv6.length == 16 && address.equals(formatIPv6(ipv6))) {
+          return new Service(internedName, ipv6, 0, unboxedPort, nonNullDetails);
+        }
+      }
+    }
+    return new Service(internedName, address != null ? STRINGS.intern(address) : null, 0, unboxedPort,
+        nonNullDetails);
+  }
+
+  /**
+   * @param address Raw address, 4 bytes for IPv4 and 16 for IPv6, as read from a DNS response
+   */
+  public static Service ofAddressBytes(String name, byte[] address, Integer port) {
+    String internedName = name != null ? STRINGS.intern(name) : null;
+    int unboxedPort = port != null ? port : -1;
+    if (address.length == 4) {
+      int packed = ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16) | ((address[2] & 0xff) << 8)
+          | (address[3] & 0xff);
+      return new Service(internedName, IPV4, packed, unboxedPort, ServiceDetails.EMPTY);
+    }
+    if (address.length != 16) {
+      throw new IllegalArgumentException("Address must be 4 or 16 bytes long, not " + address.length);
+    }
+    // IPv4 mapped addresses are formatted as IPv4, keep them equal to the instance of their literal
+    if (isIPv4Mapped(address)) {
+      return of(name, formatIPv6(address), port);
+    }
+    return new Service(internedName, address.clone(), 0, unboxedPort, ServiceDetails.EMPTY);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getAddress() {
+    if (address == IPV4) {
+      return formatIPv4(ipv4);
+    }
+    if (address instanceof byte[]) {
+      return formatIPv6((byte[]) address);
+    }
+    return (String) address;
+  }
+
+  public Integer getPort() {
+    return port >= 0 ? port : null;
+  }
+
+  /**
+   * @return The address as raw bytes, 4 for IPv4 and 16 for IPv6, or null if the address is a host name
+   */
+  public byte[] getAddressBytes() {
+    if (address == IPV4) {
+      return new byte[]{(byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4};
+    }
+    if (address instanceof byte[]) {
+      return ((byte[]) address).clone();
+    }
+    return null;
+  }
+
+  public ServiceDetails getDetails() {
+    return details;
+  }
+
+  public String getId() {
+    return getDetails().getId();
+  }
+
+  public List<String> getTags() {
+    return getDetails().getTags();
+  }
+
+  public Map<String, String> getMeta() {
+    return getDetails().getMeta();
+  }
+
+  public Map<String, String> getTaggedAddresses() {
+    return getDetails().getTaggedAddresses();
+  }
+
+  public String getDatacenter() {
+    return getDetails().getDatacenter();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Service)) {
+      return false;
+    }
+    Service other = (Service) o;
+    if (port != other.port || ipv4 != other.ipv4 || !Objects.equals(name, other.name)) {
+      return false;
+    }
+    if (address instanceof byte[] && other.address instanceof byte[]) {
+      return Arrays.equals((byte[]) address, (byte[]) other.address);
+    }
+    return Objects.equals(address, other.address);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Objects.hashCode(name);
+    result = 31 * result + (address instanceof byte[] ? Arrays.hashCode((byte[]) address)
+        : Objects.hashCode(address));
+    result = 31 * result + ipv4;
+    result = 31 * result + port;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "Service(name=" + name + ", address=" + getAddress() + ", port=" + getPort() + ")";
+  }
+
+  /**
+   * @return The packed address or -1 if the address is not an IPv4 literal in canonical dotted decimal form
+   */
+  private static long packIPv4(String address) {
+    int length = address.length();
+    if (length < 7 || length > 15) {
+      return -1;
+    }
+    long packed = 0;
+    int octets = 0;
+    int i = 0;
+    while (i < length) {
+      int start = i;
+      int octet = 0;
+      while (i < length && address.charAt(i) != '.') {
+        char c = address.charAt(i);
+        if (c < '0' || c > '9') {
+          return -1;
+        }
+        octet = octet * 10 + (c - '0');
+        i++;
+      }
+      int digits = i - start;
+      if (digits == 0 || digits > 3 || octet > 255 || (digits > 1 && address.charAt(start) == '0')) {
+        return -1;
+      }
+      packed = (packed << 8) | octet;
+      octets++;
+      if (i < length) {
+        // Skip the dot, a trailing one is invalid
+        i++;
+        if (i == length) {
+          return -1;
+        }
+      }
+    }
+    return octets == 4 ? packed : -1;
+  }
+
+  private static String formatIPv4(int ipv4) {
+    return ((ipv4 >>> 24) & 0xff) + "." + ((ipv4 >>> 16) & 0xff) + "." + ((ipv4 >>> 8) & 0xff) + "."
+        + (ipv4 & 0xff);
+  }
+
+  private static boolean isIPv4Mapped(byte[] ipv6) {
+    for (int i = 0; i < 10; i++) {
+      if (ipv6[i] != 0) {
+        return false;
+      }
+    }
+    return ipv6[10] == (byte) 0xff && ipv6[11] == (byte) 0xff;
+  }
+
+  private static String formatIPv6(byte[] ipv6) {
+    try {
+      return InetAddresses.toAddrString(InetAddress.getByAddress(ipv6));
+    } catch (UnknownHostException ex) {
+      // Cannot happen for 16 bytes
+      throw new IllegalStateException(ex);
+    }
+  }
 }
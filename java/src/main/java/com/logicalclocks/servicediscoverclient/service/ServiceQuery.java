@@ -15,14 +15,55 @@
  */
 package com.logicalclocks.servicediscoverclient.service;
 
+import lombok.Builder;
 import lombok.ToString;
 import lombok.Value;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 @ToString
-@Value(staticConstructor = "of")
+@Value
+@Builder(toBuilder = true)
 public final class ServiceQuery {
   String name;
-  Set<String> tags;
+  @Builder.Default
+  Set<String> tags = Collections.emptySet();
+  /**
+   * Consul filter expression evaluated by the agent, for example {@code Service.Meta.version == "2"}.
+   * Only supported by the HTTP resolver.
+   */
+  String filter;
+  /**
+   * Node metadata the instances must match. Only supported by the HTTP resolver.
+   */
+  @Builder.Default
+  Map<String, String> nodeMeta = Collections.emptyMap();
+  /**
+   * Node name to sort the instances by estimated round trip time, {@code _agent} for the local agent.
+   * Only supported by the HTTP resolver.
+   */
+  String near;
+  /**
+   * Zone to prefer, instances on nodes of this zone are returned first. The zone of a node is read from its
+   * metadata. Only supported by the HTTP resolver.
+   */
+  String preferredZone;
+  /**
+   * Datacenter to query, the datacenter of the agent if null. Only supported by the HTTP resolver.
+   */
+  String datacenter;
+  /**
+   * Execute the name as a Consul prepared query, which can fail over to other datacenters on the servers.
+   * The tags, node metadata and filter are defined by the prepared query. Only supported by the HTTP resolver.
+   */
+  boolean preparedQuery;
+  
+  public static ServiceQuery of(String name, Set<String> tags) {
+    return ServiceQuery.builder()
+        .name(name)
+        .tags(tags)
+        .build();
+  }
 }
@@ -0,0 +1,65 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.tracing;
+
+/**
+ * Tracer and span doing nothing, shared by all the resolvers without a tracer
+ */
+final class NoopTracer implements Tracer, Span {
+  static final NoopTracer INSTANCE = new NoopTracer();
+
+  private NoopTracer() {
+  }
+
+  @Override
+  public Span startSpan(String name) {
+    return this;
+  }
+
+  @Override
+  public Span setAttribute(String key, String value) {
+    return this;
+  }
+
+  @Override
+  public Span setAttribute(String key, long value) {
+    return this;
+  }
+
+  @Override
+  public Span setAttribute(String key, boolean value) {
+    return this;
+  }
+
+  @Override
+  public Span addEvent(String name) {
+    return this;
+  }
+
+  @Override
+  public Span recordException(Throwable exception) {
+    return this;
+  }
+
+  @Override
+  public boolean isRecording() {
+    return false;
+  }
+
+  @Override
+  public void end() {
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.tracing;
+
+/**
+ * A timed stage of a lookup. Closing the span ends it, so that it can be used in try-with-resources.
+ */
+public interface Span extends AutoCloseable {
+
+  Span setAttribute(String key, String value);
+
+  Span setAttribute(String key, long value);
+
+  Span setAttribute(String key, boolean value);
+
+  /**
+   * Record an instant of the stage, such as a cache miss
+   */
+  Span addEvent(String name);
+
+  Span recordException(Throwable exception);
+
+  /**
+   * Whether the span records anything. Attributes which are costly to compute, such as names built on every
+   * call, are only set when it does, so that the default tracer costs nothing on the lookup path.
+   */
+  default boolean isRecording() {
+    return true;
+  }
+
+  void end();
+
+  @Override
+  default void close() {
+    end();
+  }
+}
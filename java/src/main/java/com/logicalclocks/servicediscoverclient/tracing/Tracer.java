@@ -0,0 +1,48 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoverclient.tracing;
+
+/**
+ * Minimal tracer the resolvers report the stages of a lookup to, such as the SRV query, the lookups of the
+ * targets, a nameserver fallback, a Consul HTTP call or a cache hit. It maps directly onto OpenTelemetry, an
+ * adapter only has to start an OpenTelemetry span from its tracer for every span started here.
+ *
+ * Spans are started and ended on the thread doing the work, which may be a background thread of the resolver
+ * for parallel lookups. The stages of a lookup are therefore linked explicitly: the first stage of a lookup is
+ * started with {@link #startSpan(String)}, as a child of whatever the adapter considers current on the calling
+ * thread, and the stages within it with {@link #startSpan(String, Span)}, passing the span of the enclosing
+ * stage. Lazily resolved stages, such as the lookups of SRV targets while the returned stream is consumed, may
+ * start after their parent has ended. The default tracer does nothing.
+ */
+public interface Tracer {
+
+  /**
+   * Start a span, ended by {@link Span#end()} or by closing it
+   */
+  Span startSpan(String name);
+
+  /**
+   * Start a span as a child of parent, which was started by this tracer and may run on another thread. Tracers
+   * without a notion of parent can ignore it, which is what the default implementation does.
+   */
+  default Span startSpan(String name, Span parent) {
+    return startSpan(name);
+  }
+
+  static Tracer noop() {
+    return NoopTracer.INSTANCE;
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ResolverRegistry;
+import com.logicalclocks.servicediscoverclient.SharedResolver;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.orbitz.consul.Consul;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class TestResolverRegistry {
+  
+  @Test
+  public void testSharedUntilLastRelease() throws Exception {
+    ResolverRegistry registry = new ResolverRegistry();
+    Consul consul = mock(Consul.class);
+    SharedResolver first = registry.acquire(http(consul));
+    SharedResolver second = registry.acquire(http(consul));
+    assertSame(first.getResolver(), second.getResolver());
+    assertEquals(1, registry.size());
+    
+    first.close();
+    // Closing twice releases a single reference
+    first.close();
+    verify(consul, never()).destroy();
+    assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      first.getService(ServiceQuery.of("service0", Collections.emptySet()));
+    });
+    
+    second.close();
+    verify(consul, times(1)).destroy();
+    assertEquals(0, registry.size());
+    
+    // Built again once released
+    SharedResolver third = registry.acquire(http(consul));
+    assertNotSame(first.getResolver(), third.getResolver());
+    third.close();
+  }
+  
+  @Test
+  public void testKeyedByConfiguration() throws Exception {
+    ResolverRegistry registry = new ResolverRegistry();
+    Consul consul = mock(Consul.class);
+    SharedResolver lightweight = registry.acquire(http(consul).withHttpHost("localhost").withHttpLightweightParsing());
+    SharedResolver timeout = registry.acquire(http(consul).withHttpReadTimeout(Duration.ofSeconds(5)));
+    SharedResolver sameTimeout = registry.acquire(http(consul).withHttpReadTimeout(Duration.ofSeconds(5)));
+    SharedResolver otherClient = registry.acquire(http(mock(Consul.class)));
+    
+    assertNotSame(lightweight.getResolver(), timeout.getResolver());
+    assertSame(timeout.getResolver(), sameTimeout.getResolver());
+    assertNotSame(timeout.getResolver(), otherClient.getResolver());
+    assertEquals(3, registry.size());
+    for (SharedResolver resolver : new SharedResolver[]{lightweight, timeout, sameTimeout, otherClient}) {
+      resolver.close();
+    }
+    assertEquals(0, registry.size());
+  }
+  
+  @Test
+  public void testFailedBuildNotRegistered() {
+    ResolverRegistry registry = new ResolverRegistry();
+    assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      registry.acquire(new Builder(Type.CATALOG_MIRROR).withCatalogMirrorConcurrency(0));
+    });
+    assertEquals(0, registry.size());
+  }
+  
+  private Builder http(Consul consul) {
+    return new Builder(Type.HTTP)
+        .withClient(consul);
+  }
+}
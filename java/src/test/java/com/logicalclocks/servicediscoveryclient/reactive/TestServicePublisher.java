@@ -0,0 +1,221 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.reactive;
+
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.reactive.ServicePublisher;
+import com.logicalclocks.servicediscoverclient.reactive.ServiceUpdate;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestServicePublisher {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  private final Service node0 = Service.of("service0", "10.0.0.1", 8080);
+  private final Service node1 = Service.of("service0", "10.0.0.2", 8080);
+  private final Service node2 = Service.of("service0", "10.0.0.3", 8080);
+  private final Duration pollInterval = Duration.of(10, ChronoUnit.MILLIS);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  
+  @AfterEach
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+  
+  @Test
+  public void testInitialSetAndUpdates() throws Exception {
+    AtomicReference<List<Service>> instances = new AtomicReference<>(Arrays.asList(node0, node1));
+    ServiceDiscoveryClient client = clientReturning(instances);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval, scheduler).subscribe(subscriber);
+    subscriber.subscription.request(2);
+    
+    ServiceUpdate first = subscriber.next();
+    assertEquals(Arrays.asList(node0, node1), first.getServices());
+    assertEquals(Arrays.asList(node0, node1), first.getAdded());
+    assertTrue(first.getRemoved().isEmpty());
+    
+    instances.set(Arrays.asList(node1, node2));
+    ServiceUpdate second = subscriber.next();
+    assertEquals(Arrays.asList(node1, node2), second.getServices());
+    assertEquals(Collections.singletonList(node2), second.getAdded());
+    assertEquals(Collections.singletonList(node0), second.getRemoved());
+    subscriber.subscription.cancel();
+  }
+  
+  @Test
+  public void testReorderedInstancesNotDelivered() throws Exception {
+    AtomicReference<List<Service>> instances = new AtomicReference<>(Arrays.asList(node0, node1));
+    ServiceDiscoveryClient client = clientReturning(instances);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval, scheduler).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertEquals(Arrays.asList(node0, node1), subscriber.next().getServices());
+    
+    // Same instances in another order, as with near sorting
+    instances.set(Arrays.asList(node1, node0));
+    verify(client, timeout(1000).atLeast(3)).getService(query);
+    assertNull(subscriber.updates.poll(50, TimeUnit.MILLISECONDS));
+    
+    instances.set(Arrays.asList(node2, node0));
+    ServiceUpdate update = subscriber.next();
+    assertEquals(Arrays.asList(node2, node0), update.getServices());
+    assertEquals(Collections.singletonList(node2), update.getAdded());
+    assertEquals(Collections.singletonList(node1), update.getRemoved());
+    subscriber.subscription.cancel();
+  }
+  
+  @Test
+  public void testBackpressureConflatesUpdates() throws Exception {
+    AtomicReference<List<Service>> instances = new AtomicReference<>(Collections.singletonList(node0));
+    ServiceDiscoveryClient client = clientReturning(instances);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval, scheduler).subscribe(subscriber);
+    subscriber.subscription.request(1);
+    assertEquals(Collections.singletonList(node0), subscriber.next().getServices());
+    
+    // Without demand intermediate instance sets are not delivered
+    instances.set(Arrays.asList(node0, node1));
+    verify(client, timeout(1000).atLeast(3)).getService(query);
+    instances.set(Arrays.asList(node1, node2));
+    verify(client, timeout(1000).atLeast(6)).getService(query);
+    assertNull(subscriber.updates.poll(50, TimeUnit.MILLISECONDS));
+    
+    subscriber.subscription.request(1);
+    ServiceUpdate update = subscriber.next();
+    assertEquals(Arrays.asList(node1, node2), update.getServices());
+    assertEquals(Arrays.asList(node1, node2), update.getAdded());
+    assertEquals(Collections.singletonList(node0), update.getRemoved());
+    subscriber.subscription.cancel();
+  }
+  
+  @Test
+  public void testFailuresAndNotFound() throws Exception {
+    ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+    when(client.lookupService(any()))
+        .thenReturn(LookupResult.error(new ServiceDiscoveryGenericException("Connection refused")))
+        .thenAnswer(invocation -> LookupResult.found(Stream.of(node0)))
+        .thenReturn(LookupResult.notFound(query));
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval, scheduler).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    
+    assertEquals(Collections.singletonList(node0), subscriber.next().getServices());
+    ServiceUpdate gone = subscriber.next();
+    assertTrue(gone.getServices().isEmpty());
+    assertEquals(Collections.singletonList(node0), gone.getRemoved());
+    assertNull(subscriber.error.get());
+    subscriber.subscription.cancel();
+    // Misses are answered without exceptions
+    verify(client, never()).getService(any());
+  }
+  
+  @Test
+  public void testHungLookupDoesNotDelayOthers() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ServiceDiscoveryClient hung = mock(ServiceDiscoveryClient.class);
+    when(hung.lookupService(any())).thenAnswer(invocation -> {
+      release.await();
+      return LookupResult.notFound(query);
+    });
+    RecordingSubscriber hungSubscriber = new RecordingSubscriber();
+    new ServicePublisher(hung, query, pollInterval).subscribe(hungSubscriber);
+    hungSubscriber.subscription.request(Long.MAX_VALUE);
+    
+    // Publishers built without a scheduler share a pool, not a single thread the hung lookup would hold
+    ServiceDiscoveryClient client = clientReturning(new AtomicReference<>(Collections.singletonList(node0)));
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    try {
+      assertEquals(Collections.singletonList(node0), subscriber.next().getServices());
+    } finally {
+      subscriber.subscription.cancel();
+      hungSubscriber.subscription.cancel();
+      release.countDown();
+    }
+  }
+  
+  @Test
+  public void testInvalidRequest() throws Exception {
+    ServiceDiscoveryClient client = clientReturning(new AtomicReference<>(Collections.singletonList(node0)));
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServicePublisher(client, query, pollInterval, scheduler).subscribe(subscriber);
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.error.get() instanceof IllegalArgumentException);
+  }
+  
+  private ServiceDiscoveryClient clientReturning(AtomicReference<List<Service>> instances) throws Exception {
+    ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+    when(client.getService(any())).thenAnswer(invocation -> instances.get().stream());
+    when(client.lookupService(any())).thenCallRealMethod();
+    return client;
+  }
+  
+  private static class RecordingSubscriber implements Subscriber<ServiceUpdate> {
+    private final BlockingQueue<ServiceUpdate> updates = new LinkedBlockingQueue<>();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private Subscription subscription;
+    
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+    
+    @Override
+    public void onNext(ServiceUpdate update) {
+      updates.add(update);
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+      error.set(throwable);
+    }
+    
+    @Override
+    public void onComplete() {
+    }
+    
+    private ServiceUpdate next() throws InterruptedException {
+      ServiceUpdate update = updates.poll(1, TimeUnit.SECONDS);
+      assertNotNull(update);
+      return update;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.resolvers.DnsResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.EDNSOption;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares resolving a service with dnsjava, one SRV lookup and one A lookup per target, against the wire
+ * parsing fast path reading the services from the SRV response and its additional section. Responses are
+ * served from memory so that only parsing and object creation are measured, not the network.
+ *
+ * Not a test, run it with
+ * {@code java -cp target/test-classes:target/classes:<dependencies> \
+ *   com.logicalclocks.servicediscoveryclient.resolvers.DnsWireParsingBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DnsWireParsingBenchmark {
+  private static final String SERVICE = "namenode.service.lc.";
+
+  @Param({"3", "30"})
+  private int targets;
+
+  private final ServiceQuery query = ServiceQuery.of(SERVICE, Collections.emptySet());
+  // Wire responses by question name and type
+  private final Map<String, byte[]> responses = new HashMap<>();
+  private DnsResolver dnsjava;
+  private DnsResolver wire;
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(DnsWireParsingBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    Message srvResponse = response(Name.fromString(SERVICE), org.xbill.DNS.Type.SRV);
+    for (int i = 0; i < targets; i++) {
+      Name target = Name.fromString("node" + i + ".lc.");
+      InetAddress address = InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256));
+      srvResponse.addRecord(new SRVRecord(Name.fromString(SERVICE), DClass.IN, 0, 1, 1, 8080, target),
+          Section.ANSWER);
+      // TTL 0 so that dnsjava does not answer from its cache
+      srvResponse.addRecord(new ARecord(target, DClass.IN, 0, address), Section.ADDITIONAL);
+      Message aResponse = response(target, org.xbill.DNS.Type.A);
+      aResponse.addRecord(new ARecord(target, DClass.IN, 0, address), Section.ANSWER);
+      responses.put(key(target, org.xbill.DNS.Type.A), aResponse.toWire());
+    }
+    responses.put(key(Name.fromString(SERVICE), org.xbill.DNS.Type.SRV), srvResponse.toWire());
+
+    Resolver inMemory = new InMemoryResolver();
+    dnsjava = new DnsResolver() {
+      @Override
+      public Lookup lookup(Name name, int type) {
+        Lookup lookup = new Lookup(name, type);
+        lookup.setResolver(inMemory);
+        lookup.setCache(null);
+        lookup.run();
+        return lookup;
+      }
+    };
+    dnsjava.init(new Builder(Type.DNS).withDnsHost("localhost").withDnsPort(53));
+    wire = new DnsResolver() {
+      @Override
+      public ByteBuffer sendQuery(byte[] query) throws IOException {
+        return ByteBuffer.wrap(answer(new Message(query)));
+      }
+    };
+    wire.init(new Builder(Type.DNS).withDnsHost("localhost").withDnsPort(53).withDnsWireParsing());
+  }
+
+  @Benchmark
+  public void dnsjava(Blackhole blackhole) throws ServiceDiscoveryException {
+    dnsjava.getService(query).forEach(blackhole::consume);
+  }
+
+  @Benchmark
+  public void wire(Blackhole blackhole) throws ServiceDiscoveryException {
+    wire.getService(query).forEach(blackhole::consume);
+  }
+
+  private Message response(Name name, int type) {
+    Message response = new Message();
+    response.getHeader().setFlag(Flags.QR);
+    response.addRecord(Record.newRecord(name, type, DClass.IN), Section.QUESTION);
+    return response;
+  }
+
+  /**
+   * @return The canned response to the query, with the identifier of the query
+   */
+  private byte[] answer(Message query) {
+    byte[] response = responses.get(key(query.getQuestion().getName(), query.getQuestion().getType())).clone();
+    int id = query.getHeader().getID();
+    response[0] = (byte) (id >>> 8);
+    response[1] = (byte) id;
+    return response;
+  }
+
+  private static String key(Name name, int type) {
+    return name.toString().toLowerCase() + "/" + type;
+  }
+
+  private class InMemoryResolver implements Resolver {
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+      CompletableFuture<Message> response = new CompletableFuture<>();
+      try {
+        response.complete(new Message(answer(query)));
+      } catch (IOException ex) {
+        response.completeExceptionally(ex);
+      }
+      return response;
+    }
+
+    @Override
+    public void setPort(int port) {
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List<EDNSOption> options) {
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+    }
+  }
+}
@@ -15,21 +15,34 @@
  */
 package com.logicalclocks.servicediscoveryclient.resolvers;
 
+import com.google.common.collect.ImmutableSet;
 import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
 import com.logicalclocks.servicediscoverclient.resolvers.CachingResolver;
 import com.logicalclocks.servicediscoverclient.resolvers.DnsResolver;
 import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceDetails;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
 import org.junit.jupiter.api.Test;
 import org.xbill.DNS.*;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -61,6 +74,7 @@ public class TestCachingResolver {
                 .withDnsPort(53);
         DnsResolver client = mock(DnsResolver.class);
         doCallRealMethod().when(client).init(any(Builder.class));
+        when(client.lookupService(any())).thenCallRealMethod();
         when(client.getService(any())).thenCallRealMethod();
         client.init(resolverBuilder);
 
@@ -119,7 +133,7 @@ public class TestCachingResolver {
 
         // Real resolver must have been called this time
         verify(cachingResolver, times(1)).getService(query);
-        verify(client, times(1)).getService(eq(query));
+        verify(client, times(1)).lookupService(eq(query));
 
         answer = cachingResolver.getService(query);
         assertNotNull(answer);
@@ -133,7 +147,7 @@ public class TestCachingResolver {
 
         // Now it should hit the cache
         verify(cachingResolver, times(2)).getService(query);
-        verify(client, times(1)).getService(eq(query));
+        verify(client, times(1)).lookupService(eq(query));
     }
 
     @Test
@@ -144,6 +158,7 @@ public class TestCachingResolver {
                 .withDnsPort(53);
         DnsResolver client = mock(DnsResolver.class);
         doCallRealMethod().when(client).init(any(Builder.class));
+        when(client.lookupService(any())).thenCallRealMethod();
         when(client.getService(any())).thenCallRealMethod();
         client.init(resolverBuilder);
 
@@ -161,4 +176,122 @@ public class TestCachingResolver {
             cachingResolver.getService(ServiceQuery.of(service, Collections.emptySet()));
         });
     }
+
+    @Test
+    public void testNotFoundWithoutException() throws Exception {
+        ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+        ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+        when(client.lookupService(any())).thenReturn(LookupResult.notFound(query));
+        ServiceDiscoveryClient cachingResolver = new Builder(Type.CACHING)
+                .withServiceDiscoveryClient(client)
+                .build();
+
+        LookupResult result = cachingResolver.lookupService(query);
+        assertEquals(LookupResult.Status.NOT_FOUND, result.getStatus());
+        assertEquals(0, result.getServices().count());
+        ServiceNotFoundException ex = assertThrows(ServiceNotFoundException.class, () -> {
+            cachingResolver.getService(query);
+        });
+        assertEquals(0, ex.getStackTrace().length);
+        assertTrue(ex.getMessage().contains("service0"));
+        // Misses are not cached and never go through the throwing getService of the delegate
+        verify(client, times(2)).lookupService(query);
+        verify(client, never()).getService(any());
+    }
+
+    @Test
+    public void testTagIndex() throws Exception {
+        String service = "namenode";
+        Service node0 = serviceWithTags(service, "10.0.0.1", "a");
+        Service node1 = serviceWithTags(service, "10.0.0.2", "a", "b");
+        Service node2 = serviceWithTags(service, "10.0.0.3", "b", "c");
+        ServiceQuery fullSet = ServiceQuery.of(service, Collections.emptySet());
+        ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+        when(client.lookupService(any())).thenCallRealMethod();
+        when(client.getService(any())).thenAnswer(invocation -> Stream.of(node0, node1, node2));
+
+        CachingResolver cachingResolver = (CachingResolver) new Builder(Type.CACHING)
+                .withServiceDiscoveryClient(client)
+                .withCacheTagIndex()
+                .build();
+
+        assertEquals(Arrays.asList(node0, node1, node2), query(cachingResolver, fullSet));
+        assertEquals(Arrays.asList(node0, node1), query(cachingResolver, ServiceQuery.of(service,
+                ImmutableSet.of("a"))));
+        assertEquals(Collections.singletonList(node1), query(cachingResolver, ServiceQuery.of(service,
+                ImmutableSet.of("a", "b"))));
+        assertEquals(Arrays.asList(node1, node2), query(cachingResolver, ServiceQuery.of(service,
+                ImmutableSet.of("b"))));
+        assertThrows(ServiceNotFoundException.class, () -> {
+            cachingResolver.getService(ServiceQuery.of(service, ImmutableSet.of("a", "c")));
+        });
+        assertThrows(ServiceNotFoundException.class, () -> {
+            cachingResolver.getService(ServiceQuery.of(service, ImmutableSet.of("d")));
+        });
+
+        // Every tag combination is answered from the single full set lookup
+        verify(client, times(1)).getService(any());
+        verify(client, times(1)).getService(eq(fullSet));
+    }
+
+    @Test
+    public void testTagIndexNeedsResolver() throws Exception {
+        // The DNS fallback does not return the tags of the instances
+        assertThrows(ServiceDiscoveryGenericException.class, () -> {
+            new Builder(Type.CACHING)
+                    .withCacheTagIndex()
+                    .build();
+        });
+    }
+
+    @Test
+    public void testAdaptiveExpiration() throws Exception {
+        ServiceQuery query = ServiceQuery.of("namenode", Collections.emptySet());
+        Service node0 = Service.of("namenode", "10.0.0.1", 8020);
+        Service node1 = Service.of("namenode", "10.0.0.2", 8020);
+
+        // A stable service is looked up less often than with the fixed 10 seconds expiration
+        ServiceDiscoveryClient stable = mock(ServiceDiscoveryClient.class);
+        when(stable.lookupService(any())).thenCallRealMethod();
+        when(stable.getService(any())).thenAnswer(invocation -> Stream.of(node0));
+        assertTrue(queryEverySecond(stable, query, 200) < 10);
+
+        // A churny service is looked up more often, down to the minimum expiration
+        AtomicInteger calls = new AtomicInteger();
+        ServiceDiscoveryClient churny = mock(ServiceDiscoveryClient.class);
+        when(churny.lookupService(any())).thenCallRealMethod();
+        when(churny.getService(any())).thenAnswer(invocation ->
+                Stream.of(calls.getAndIncrement() % 2 == 0 ? node0 : node1));
+        assertTrue(queryEverySecond(churny, query, 200) > 150);
+    }
+
+    private int queryEverySecond(ServiceDiscoveryClient client, ServiceQuery query, int seconds) throws Exception {
+        AtomicLong clock = new AtomicLong();
+        CachingResolver cachingResolver = new CachingResolver() {
+            @Override
+            protected long nanoTime() {
+                return clock.get();
+            }
+        };
+        cachingResolver.init(new Builder(Type.CACHING)
+                .withServiceDiscoveryClient(client)
+                .withCacheExpiration(Duration.of(10, ChronoUnit.SECONDS))
+                .withAdaptiveCacheExpiration(Duration.of(1, ChronoUnit.SECONDS), Duration.of(1, ChronoUnit.MINUTES)));
+        for (int i = 0; i < seconds; i++) {
+            assertEquals(1, cachingResolver.getService(query).count());
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+        return (int) mockingDetails(client).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("getService"))
+                .count();
+    }
+
+    private List<Service> query(CachingResolver cachingResolver, ServiceQuery query) throws Exception {
+        return cachingResolver.getService(query).collect(Collectors.toList());
+    }
+
+    private Service serviceWithTags(String name, String address, String... tags) {
+        return Service.of(name, address, 8020, ServiceDetails.of(address, Arrays.asList(tags),
+                Collections.emptyMap(), Collections.emptyMap(), null));
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.HealthClient;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.State;
+import com.orbitz.consul.model.health.HealthCheck;
+import com.orbitz.consul.model.health.ImmutableHealthCheck;
+import com.orbitz.consul.model.health.ImmutableNode;
+import com.orbitz.consul.model.health.ImmutableService;
+import com.orbitz.consul.model.health.ImmutableServiceHealth;
+import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.QueryOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class TestCatalogMirrorResolver {
+  private final BlockingQueue<ConsulResponse<Map<String, List<String>>>> catalogUpdates = new LinkedBlockingQueue<>();
+  private final BlockingQueue<ConsulResponse<List<HealthCheck>>> checkUpdates = new LinkedBlockingQueue<>();
+  private final Map<String, List<ServiceHealth>> instances = new ConcurrentHashMap<>();
+  private HealthClient healthClient;
+  private ServiceDiscoveryClient client;
+  
+  @BeforeEach
+  public void setup() throws Exception {
+    Map<String, List<String>> catalog = new HashMap<>();
+    catalog.put("service0", Collections.singletonList("rpc"));
+    catalog.put("service1", Collections.emptyList());
+    catalogUpdates.add(consulResponse(catalog, 1));
+    checkUpdates.add(consulResponse(Arrays.asList(check("node0", "service0", "passing"),
+        check("node1", "service1", "passing")), 1));
+    instances.put("service0", Arrays.asList(serviceHealth("service0", "10.0.0.1", "rpc"),
+        serviceHealth("service0", "10.0.0.2", "http")));
+    instances.put("service1", Collections.singletonList(serviceHealth("service1", "10.0.0.3")));
+    
+    CatalogClient catalogClient = mock(CatalogClient.class);
+    when(catalogClient.getServices(any(QueryOptions.class))).thenAnswer(blockingAnswer(catalogUpdates));
+    healthClient = mock(HealthClient.class);
+    when(healthClient.getChecksByState(eq(State.ANY), any(QueryOptions.class)))
+        .thenAnswer(blockingAnswer(checkUpdates));
+    when(healthClient.getHealthyServiceInstances(any(), any(QueryOptions.class))).thenAnswer(invocation ->
+        consulResponse(instances.getOrDefault(invocation.<String>getArgument(0), Collections.emptyList()), 1));
+    Consul consul = mock(Consul.class);
+    when(consul.catalogClient()).thenReturn(catalogClient);
+    when(consul.healthClient()).thenReturn(healthClient);
+    client = new Builder(Type.CATALOG_MIRROR)
+        .withClient(consul)
+        .withCatalogMirrorWait(java.time.Duration.ofSeconds(1))
+        .build();
+    // Initial load of the whole catalog
+    verify(healthClient, timeout(5000)).getHealthyServiceInstances(eq("service0"), any(QueryOptions.class));
+    verify(healthClient, timeout(5000)).getHealthyServiceInstances(eq("service1"), any(QueryOptions.class));
+  }
+  
+  @AfterEach
+  public void tearDown() {
+    client.close();
+  }
+  
+  @Test
+  public void testWaitShorterThanReadTimeout() throws Exception {
+    // Every blocking query would time out and the mirror would never update
+    assertThrows(ServiceDiscoveryGenericException.class, () -> new Builder(Type.CATALOG_MIRROR)
+        .withClient(mock(Consul.class))
+        .withHttpReadTimeout(java.time.Duration.ofSeconds(3))
+        .build());
+    assertThrows(ServiceDiscoveryGenericException.class, () -> new Builder(Type.CATALOG_MIRROR)
+        .withClient(mock(Consul.class))
+        .withCatalogMirrorWait(java.time.Duration.ofSeconds(10))
+        .build());
+  }
+  
+  @Test
+  public void testServedFromMirror() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertEquals(2, client.getService(ServiceQuery.of("service0", Collections.emptySet())).count());
+      List<Service> rpc = client.getService(ServiceQuery.of("service0", Collections.singleton("rpc")))
+          .collect(Collectors.toList());
+      assertEquals(Collections.singletonList(Service.of("service0", "10.0.0.1", 8080)), rpc);
+      assertEquals(1, client.getService(ServiceQuery.of("service1", Collections.emptySet())).count());
+    }
+    assertThrows(ServiceNotFoundException.class,
+        () -> client.getService(ServiceQuery.of("service2", Collections.emptySet())));
+    assertThrows(ServiceNotFoundException.class,
+        () -> client.getService(ServiceQuery.of("service1", Collections.singleton("rpc"))));
+    // Lookups do not reach Consul
+    verify(healthClient, times(1)).getHealthyServiceInstances(eq("service0"), any(QueryOptions.class));
+    verify(healthClient, times(1)).getHealthyServiceInstances(eq("service1"), any(QueryOptions.class));
+    verify(healthClient, never()).getHealthyServiceInstances(eq("service2"), any(QueryOptions.class));
+  }
+  
+  @Test
+  public void testCatalogChange() throws Exception {
+    instances.put("service2", Collections.singletonList(serviceHealth("service2", "10.0.0.4")));
+    Map<String, List<String>> catalog = new HashMap<>();
+    catalog.put("service0", Collections.singletonList("rpc"));
+    catalog.put("service2", Collections.emptyList());
+    catalogUpdates.add(consulResponse(catalog, 2));
+    
+    verify(healthClient, timeout(5000)).getHealthyServiceInstances(eq("service2"), any(QueryOptions.class));
+    assertEquals(Service.of("service2", "10.0.0.4", 8080),
+        client.getService(ServiceQuery.of("service2", Collections.emptySet())).findFirst().get());
+    assertThrows(ServiceNotFoundException.class,
+        () -> client.getService(ServiceQuery.of("service1", Collections.emptySet())));
+    // Unchanged services are not reloaded
+    verify(healthClient, times(1)).getHealthyServiceInstances(eq("service0"), any(QueryOptions.class));
+  }
+  
+  @Test
+  public void testHealthChange() throws Exception {
+    instances.put("service0", Collections.singletonList(serviceHealth("service0", "10.0.0.2", "http")));
+    checkUpdates.add(consulResponse(Arrays.asList(check("node0", "service0", "critical"),
+        check("node1", "service1", "passing")), 2));
+    
+    verify(healthClient, timeout(5000).times(2)).getHealthyServiceInstances(eq("service0"),
+        any(QueryOptions.class));
+    AtomicReference<List<Service>> answer = new AtomicReference<>();
+    for (int i = 0; i < 50; i++) {
+      answer.set(client.getService(ServiceQuery.of("service0", Collections.emptySet()))
+          .collect(Collectors.toList()));
+      if (answer.get().size() == 1) {
+        break;
+      }
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    assertEquals(Collections.singletonList(Service.of("service0", "10.0.0.2", 8080)), answer.get());
+    verify(healthClient, times(1)).getHealthyServiceInstances(eq("service1"), any(QueryOptions.class));
+  }
+  
+  /**
+   * Answers with the next update, or the last one again if none arrives before the wait, like a blocking query
+   */
+  private <T> Answer<ConsulResponse<T>> blockingAnswer(BlockingQueue<ConsulResponse<T>> updates) {
+    AtomicReference<ConsulResponse<T>> last = new AtomicReference<>();
+    return invocation -> {
+      ConsulResponse<T> update = updates.poll(last.get() == null ? 0 : 100, TimeUnit.MILLISECONDS);
+      if (update != null) {
+        last.set(update);
+      }
+      return last.get();
+    };
+  }
+  
+  private HealthCheck check(String node, String service, String status) {
+    return ImmutableHealthCheck.builder().node(node).checkId("service:" + service).name(service)
+        .status(status).serviceName(service).build();
+  }
+  
+  private ServiceHealth serviceHealth(String service, String address, String... tags) {
+    return ImmutableServiceHealth.builder()
+        .node(ImmutableNode.builder().node("node-" + address).address(address).build())
+        .service(ImmutableService.builder().id(service + "-" + address).service(service).address(address)
+            .port(8080).addTags(tags).build())
+        .build();
+  }
+  
+  private <T> ConsulResponse<T> consulResponse(T response, long index) {
+    return new ConsulResponse<>(response, System.currentTimeMillis(), true, BigInteger.valueOf(index), "", "100");
+  }
+}
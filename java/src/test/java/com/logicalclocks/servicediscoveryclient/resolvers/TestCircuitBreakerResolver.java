@@ -0,0 +1,159 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.CircuitBreakerOpenException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.CircuitBreakerResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestCircuitBreakerResolver {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  private final Service service = Service.of("service0", "10.0.0.1", 8080);
+
+  @Test
+  public void testOpensOnFailures() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenThrow(new ServiceDiscoveryGenericException("Connection refused"));
+
+    CircuitBreakerResolver client = (CircuitBreakerResolver) new Builder(Type.CIRCUIT_BREAKER)
+        .withServiceDiscoveryClient(delegate)
+        .withCircuitBreakerWindowSize(4)
+        .withCircuitBreakerMinimumCalls(4)
+        .build();
+
+    for (int i = 0; i < 4; i++) {
+      assertThrows(ServiceDiscoveryGenericException.class, () -> client.getService(query));
+    }
+    assertEquals(CircuitBreakerResolver.State.OPEN, client.getState());
+    assertEquals(1, client.getTransitionCount(CircuitBreakerResolver.State.OPEN));
+
+    // Fails fast without calling the underlying resolver
+    assertThrows(CircuitBreakerOpenException.class, () -> client.getService(query));
+    verify(delegate, times(4)).getService(any());
+    assertEquals(1, client.getNotPermittedCallCount());
+  }
+
+  @Test
+  public void testNotFoundIsNotFailure() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenThrow(new ServiceNotFoundException("Could not find service"));
+
+    CircuitBreakerResolver client = (CircuitBreakerResolver) new Builder(Type.CIRCUIT_BREAKER)
+        .withServiceDiscoveryClient(delegate)
+        .withCircuitBreakerWindowSize(2)
+        .withCircuitBreakerMinimumCalls(2)
+        .build();
+
+    for (int i = 0; i < 5; i++) {
+      assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+    }
+    assertEquals(CircuitBreakerResolver.State.CLOSED, client.getState());
+  }
+
+  @Test
+  public void testHalfOpenCloses() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any()))
+        .thenThrow(new ServiceDiscoveryGenericException("Connection refused"))
+        .thenAnswer(invocation -> Stream.of(service));
+
+    CircuitBreakerResolver client = (CircuitBreakerResolver) new Builder(Type.CIRCUIT_BREAKER)
+        .withServiceDiscoveryClient(delegate)
+        .withCircuitBreakerWindowSize(1)
+        .withCircuitBreakerMinimumCalls(1)
+        .withCircuitBreakerHalfOpenCalls(1)
+        .withCircuitBreakerOpenDuration(Duration.of(50, ChronoUnit.MILLIS))
+        .build();
+
+    assertThrows(ServiceDiscoveryGenericException.class, () -> client.getService(query));
+    assertEquals(CircuitBreakerResolver.State.OPEN, client.getState());
+
+    Thread.sleep(100);
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(service), services);
+    assertEquals(CircuitBreakerResolver.State.CLOSED, client.getState());
+    assertEquals(1, client.getTransitionCount(CircuitBreakerResolver.State.HALF_OPEN));
+    assertEquals(1, client.getTransitionCount(CircuitBreakerResolver.State.CLOSED));
+  }
+
+  @Test
+  public void testFallbackToLastKnown() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any()))
+        .thenAnswer(invocation -> Stream.of(service))
+        .thenThrow(new ServiceDiscoveryGenericException("Connection refused"));
+
+    CircuitBreakerResolver client = (CircuitBreakerResolver) new Builder(Type.CIRCUIT_BREAKER)
+        .withServiceDiscoveryClient(delegate)
+        .withCircuitBreakerWindowSize(2)
+        .withCircuitBreakerMinimumCalls(2)
+        .withCircuitBreakerFallbackToLastKnown()
+        .build();
+
+    assertEquals(1, client.getService(query).count());
+    assertThrows(ServiceDiscoveryGenericException.class, () -> client.getService(query));
+    assertEquals(CircuitBreakerResolver.State.OPEN, client.getState());
+
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(service), services);
+    assertThrows(CircuitBreakerOpenException.class,
+        () -> client.getService(ServiceQuery.of("service1", Collections.emptySet())));
+  }
+
+  @Test
+  public void testOpensOnSlowCalls() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> {
+      Thread.sleep(20);
+      return Stream.of(service);
+    });
+
+    CircuitBreakerResolver client = (CircuitBreakerResolver) new Builder(Type.CIRCUIT_BREAKER)
+        .withServiceDiscoveryClient(delegate)
+        .withCircuitBreakerWindowSize(2)
+        .withCircuitBreakerMinimumCalls(2)
+        .withCircuitBreakerSlowCallThreshold(Duration.of(5, ChronoUnit.MILLIS))
+        .withCircuitBreakerSlowCallRateThreshold(1.0f)
+        .build();
+
+    assertEquals(1, client.getService(query).count());
+    assertEquals(1, client.getService(query).count());
+    assertEquals(CircuitBreakerResolver.State.OPEN, client.getState());
+  }
+}
@@ -18,24 +18,38 @@ package com.logicalclocks.servicediscoveryclient.resolvers;
 import com.logicalclocks.servicediscoverclient.Builder;
 import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.AddressFamily;
 import com.logicalclocks.servicediscoverclient.resolvers.DnsResolver;
 import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
 import org.junit.jupiter.api.Test;
+import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Flags;
 import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
@@ -158,6 +172,264 @@ public class TestDnsResolver {
     });
   }
   
+  @Test
+  public void testNotFoundLookupMock() throws Exception {
+    ServiceQuery query = ServiceQuery.of("thisservicedoesnotexist.lc", Collections.emptySet());
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    when(client.getService(any())).thenCallRealMethod();
+    when(client.lookupService(any())).thenCallRealMethod();
+    client.init(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53));
+    
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getResult()).thenReturn(Lookup.HOST_NOT_FOUND);
+    when(client.lookup(any(), eq(org.xbill.DNS.Type.SRV))).thenReturn(mockedSRVLookup);
+    
+    LookupResult result = client.lookupService(query);
+    assertEquals(LookupResult.Status.NOT_FOUND, result.getStatus());
+    assertNull(result.getError());
+    assertEquals(0, result.getServices().count());
+    // getService throws the same miss without filling a stack trace
+    ServiceNotFoundException ex = assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+    assertEquals(0, ex.getStackTrace().length);
+    assertTrue(ex.getMessage().contains("thisservicedoesnotexist.lc"));
+  }
+  
+  @Test
+  public void testDualStackMock() throws Exception {
+    String service = "namenode.service.lc.";
+    int servicePort = 8080;
+    String target0 = "node0.lc.";
+    String target1 = "node1.lc.";
+    
+    Builder resolverBuilder = new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsAddressFamily(AddressFamily.IPV6_FIRST);
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    when(client.getService(any())).thenCallRealMethod();
+    doCallRealMethod().when(client).close();
+    client.init(resolverBuilder);
+    
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getAnswers()).thenReturn(new Record[]{
+        new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, servicePort, Name.fromString(target0)),
+        new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, servicePort, Name.fromString(target1))});
+    when(client.lookup(eq(Name.fromString(service)), eq(org.xbill.DNS.Type.SRV)))
+        .thenReturn(mockedSRVLookup);
+    
+    // node0 is dual stack with two IPv4 addresses
+    Lookup mockedALookup0 = mock(Lookup.class);
+    when(mockedALookup0.getAnswers()).thenReturn(new Record[]{
+        new ARecord(Name.fromString(target0), 1, 500, InetAddress.getByName("10.0.0.1")),
+        new ARecord(Name.fromString(target0), 1, 500, InetAddress.getByName("10.0.0.3"))});
+    Lookup mockedAAAALookup0 = mock(Lookup.class);
+    when(mockedAAAALookup0.getAnswers()).thenReturn(new Record[]{
+        new AAAARecord(Name.fromString(target0), 1, 500, InetAddress.getByName("2001:db8::1"))});
+    when(client.lookup(eq(Name.fromString(target0)), eq(org.xbill.DNS.Type.A)))
+        .thenReturn(mockedALookup0);
+    when(client.lookup(eq(Name.fromString(target0)), eq(org.xbill.DNS.Type.AAAA)))
+        .thenReturn(mockedAAAALookup0);
+    
+    // node1 is IPv6 only
+    Lookup mockedALookup1 = mock(Lookup.class);
+    when(mockedALookup1.getAnswers()).thenReturn(null);
+    Lookup mockedAAAALookup1 = mock(Lookup.class);
+    when(mockedAAAALookup1.getAnswers()).thenReturn(new Record[]{
+        new AAAARecord(Name.fromString(target1), 1, 500, InetAddress.getByName("2001:db8::2"))});
+    when(client.lookup(eq(Name.fromString(target1)), eq(org.xbill.DNS.Type.A)))
+        .thenReturn(mockedALookup1);
+    when(client.lookup(eq(Name.fromString(target1)), eq(org.xbill.DNS.Type.AAAA)))
+        .thenReturn(mockedAAAALookup1);
+    
+    List<String> addresses = client.getService(ServiceQuery.of(service, Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList("2001:db8::1", "10.0.0.1", "10.0.0.3", "2001:db8::2"), addresses);
+    client.close();
+  }
+  
+  @Test
+  public void testLazyResolutionMock() throws Exception {
+    DnsResolver client = mockThreeTargets(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53));
+    
+    Optional<Service> first = client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .findFirst();
+    assertEquals("10.0.0.0", first.get().getAddress());
+    verify(client, times(1)).lookup(eq(Name.fromString("node0.lc.")), eq(org.xbill.DNS.Type.A));
+    verify(client, never()).lookup(eq(Name.fromString("node1.lc.")), eq(org.xbill.DNS.Type.A));
+    verify(client, never()).lookup(eq(Name.fromString("node2.lc.")), eq(org.xbill.DNS.Type.A));
+  }
+  
+  @Test
+  public void testPrefetchMock() throws Exception {
+    DnsResolver client = mockThreeTargets(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsPrefetchTargets(1));
+    
+    Optional<Service> first = client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .findFirst();
+    assertEquals("10.0.0.0", first.get().getAddress());
+    verify(client, timeout(1000).times(1)).lookup(eq(Name.fromString("node1.lc.")), eq(org.xbill.DNS.Type.A));
+    verify(client, never()).lookup(eq(Name.fromString("node2.lc.")), eq(org.xbill.DNS.Type.A));
+    
+    List<String> addresses = client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList("10.0.0.0", "10.0.0.1", "10.0.0.2"), addresses);
+    client.close();
+  }
+  
+  @Test
+  public void testWireParsingMock() throws Exception {
+    DnsResolver client = mockThreeTargets(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsWireParsing());
+    // Owner names differ in case from the targets, names are case insensitive
+    when(client.sendQuery(any())).thenAnswer(invocation -> wireResponse(invocation.getArgument(0), false,
+        new ARecord(Name.fromString("NODE0.lc."), 1, 500, InetAddress.getByName("10.0.0.0")),
+        new ARecord(Name.fromString("node1.LC."), 1, 500, InetAddress.getByName("10.0.0.1")),
+        new AAAARecord(Name.fromString("node1.lc."), 1, 500, InetAddress.getByName("2001:db8::1")),
+        new ARecord(Name.fromString("node2.lc."), 1, 500, InetAddress.getByName("10.0.0.2")),
+        new ARecord(Name.fromString("node2.lc."), 1, 500, InetAddress.getByName("10.0.0.3"))));
+    
+    List<Service> services = client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList(Service.of("namenode.service.lc.", "10.0.0.0", 8080),
+        Service.of("namenode.service.lc.", "10.0.0.1", 8080), Service.of("namenode.service.lc.", "10.0.0.2", 8080),
+        Service.of("namenode.service.lc.", "10.0.0.3", 8080)), services);
+    verify(client, never()).lookup(any(), anyInt());
+  }
+  
+  @Test
+  public void testWireParsingDualStackMock() throws Exception {
+    DnsResolver client = mockThreeTargets(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsAddressFamily(AddressFamily.IPV6_FIRST)
+        .withDnsWireParsing());
+    when(client.sendQuery(any())).thenAnswer(invocation -> wireResponse(invocation.getArgument(0), false,
+        new ARecord(Name.fromString("node0.lc."), 1, 500, InetAddress.getByName("10.0.0.0")),
+        new AAAARecord(Name.fromString("node0.lc."), 1, 500, InetAddress.getByName("2001:db8::")),
+        new AAAARecord(Name.fromString("node1.lc."), 1, 500, InetAddress.getByName("2001:db8::1")),
+        new ARecord(Name.fromString("node2.lc."), 1, 500, InetAddress.getByName("10.0.0.2"))));
+    
+    List<String> addresses = client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList("2001:db8::", "10.0.0.0", "2001:db8::1", "10.0.0.2"), addresses);
+    verify(client, never()).lookup(any(), anyInt());
+  }
+  
+  @Test
+  public void testWireParsingFallbackMock() throws Exception {
+    DnsResolver client = mockThreeTargets(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsWireParsing());
+    List<String> expected = Arrays.asList("10.0.0.0", "10.0.0.1", "10.0.0.2");
+    
+    // The address of node2 is missing
+    when(client.sendQuery(any())).thenAnswer(invocation -> wireResponse(invocation.getArgument(0), false,
+        new ARecord(Name.fromString("node0.lc."), 1, 500, InetAddress.getByName("10.0.0.0")),
+        new ARecord(Name.fromString("node1.lc."), 1, 500, InetAddress.getByName("10.0.0.1"))));
+    assertEquals(expected, client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList()));
+    verify(client, times(1)).lookup(eq(Name.fromString("node2.lc.")), eq(org.xbill.DNS.Type.A));
+    
+    // Truncated response
+    doAnswer(invocation -> wireResponse(invocation.getArgument(0), true)).when(client).sendQuery(any());
+    assertEquals(expected, client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList()));
+    verify(client, times(2)).lookup(eq(Name.fromString("node2.lc.")), eq(org.xbill.DNS.Type.A));
+    
+    // No answer from the nameserver
+    doThrow(new SocketTimeoutException()).when(client).sendQuery(any());
+    assertEquals(expected, client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList()));
+    verify(client, times(3)).lookup(eq(Name.fromString("node2.lc.")), eq(org.xbill.DNS.Type.A));
+    verify(client, times(3)).sendQuery(any());
+    
+    // The fast path is not tried again with the nameserver which did not answer
+    assertEquals(expected, client.getService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet()))
+        .map(Service::getAddress)
+        .collect(Collectors.toList()));
+    verify(client, times(3)).sendQuery(any());
+  }
+  
+  @Test
+  public void testTimeoutMock() throws Exception {
+    try (DatagramSocket silent = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+      ServiceDiscoveryClient client = new Builder(Type.DNS)
+          .withDnsHost("127.0.0.1")
+          .withDnsPort(silent.getLocalPort())
+          .withDnsTimeout(Duration.ofMillis(200))
+          .build();
+      long start = System.nanoTime();
+      // The nameserver never answers, nor is it expected the system's fallback nameservers do
+      assertNotEquals(LookupResult.Status.FOUND,
+          client.lookupService(ServiceQuery.of("namenode.service.lc.", Collections.emptySet())).getStatus());
+      // Well below the default timeout of a single nameserver
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+      client.close();
+    }
+  }
+  
+  /**
+   * Response to the SRV query of namenode.service.lc. with the three targets of {@link #mockThreeTargets}
+   */
+  private ByteBuffer wireResponse(byte[] query, boolean truncated, Record... additional) throws IOException {
+    Message request = new Message(query);
+    Message response = new Message(request.getHeader().getID());
+    response.getHeader().setFlag(Flags.QR);
+    if (truncated) {
+      response.getHeader().setFlag(Flags.TC);
+    }
+    response.addRecord(request.getQuestion(), Section.QUESTION);
+    for (int i = 0; i < 3; i++) {
+      response.addRecord(new SRVRecord(request.getQuestion().getName(), 1, 500, 1, 8080, 8080,
+          Name.fromString("node" + i + ".lc.")), Section.ANSWER);
+    }
+    for (Record record : additional) {
+      response.addRecord(record, Section.ADDITIONAL);
+    }
+    return ByteBuffer.wrap(response.toWire());
+  }
+  
+  private DnsResolver mockThreeTargets(Builder resolverBuilder) throws Exception {
+    String service = "namenode.service.lc.";
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    when(client.getService(any())).thenCallRealMethod();
+    doCallRealMethod().when(client).close();
+    client.init(resolverBuilder);
+    
+    Record[] SRVAnswer = new Record[3];
+    for (int i = 0; i < SRVAnswer.length; i++) {
+      Name target = Name.fromString("node" + i + ".lc.");
+      SRVAnswer[i] = new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, 8080, target);
+      Lookup mockedALookup = mock(Lookup.class);
+      when(mockedALookup.getAnswers()).thenReturn(new Record[]{
+          new ARecord(target, 1, 500, InetAddress.getByName("10.0.0." + i))});
+      when(client.lookup(eq(target), eq(org.xbill.DNS.Type.A))).thenReturn(mockedALookup);
+    }
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getAnswers()).thenReturn(SRVAnswer);
+    when(client.lookup(eq(Name.fromString(service)), eq(org.xbill.DNS.Type.SRV)))
+        .thenReturn(mockedSRVLookup);
+    return client;
+  }
+  
   private boolean isServerRunning() {
     DatagramSocket socket = null;
     try {
@@ -0,0 +1,163 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestFailoverResolver {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  private final Service httpService = Service.of("service0", "10.0.0.1", 8080);
+  private final Service dnsService = Service.of("service0", "10.0.0.2", 8080);
+
+  @Test
+  public void testSequentialFailover() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenCallRealMethod();
+    when(primary.getService(any())).thenThrow(new ServiceDiscoveryGenericException("Connection refused"));
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenCallRealMethod();
+    when(secondary.getService(any())).thenAnswer(invocation -> Stream.of(dnsService));
+
+    ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+        .build();
+
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(dnsService), services);
+    verify(primary, times(1)).getService(query);
+    verify(secondary, times(1)).getService(query);
+  }
+
+  @Test
+  public void testSequentialPrimaryAnswers() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenCallRealMethod();
+    when(primary.getService(any())).thenAnswer(invocation -> Stream.of(httpService));
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenCallRealMethod();
+
+    ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+        .build();
+
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(httpService), services);
+    verify(secondary, never()).getService(any());
+  }
+
+  @Test
+  public void testAllNotFound() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenCallRealMethod();
+    when(primary.getService(any())).thenThrow(new ServiceNotFoundException("Could not find service"));
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenCallRealMethod();
+    when(secondary.getService(any())).thenThrow(new ServiceNotFoundException("Could not find service"));
+
+    ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+        .withHedgingDelay(Duration.of(10, ChronoUnit.MILLIS))
+        .build();
+
+    assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+    client.close();
+  }
+
+  @Test
+  public void testNotFoundWithoutException() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenReturn(LookupResult.notFound(query));
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenReturn(LookupResult.notFound(query));
+
+    for (Duration hedgingDelay : new Duration[]{null, Duration.of(10, ChronoUnit.MILLIS)}) {
+      ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+          .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+          .withHedgingDelay(hedgingDelay)
+          .build();
+
+      assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(query).getStatus());
+      ServiceNotFoundException ex = assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+      assertEquals(0, ex.getStackTrace().length);
+      client.close();
+    }
+    verify(primary, never()).getService(any());
+    verify(secondary, never()).getService(any());
+  }
+
+  @Test
+  public void testHedgedSlowPrimary() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenCallRealMethod();
+    when(primary.getService(any())).thenAnswer(invocation -> {
+      Thread.sleep(5000);
+      return Stream.of(httpService);
+    });
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenCallRealMethod();
+    when(secondary.getService(any())).thenAnswer(invocation -> Stream.of(dnsService));
+
+    ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+        .withHedgingDelay(Duration.of(20, ChronoUnit.MILLIS))
+        .build();
+
+    long start = System.currentTimeMillis();
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(dnsService), services);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    client.close();
+  }
+
+  @Test
+  public void testHedgedFastPrimary() throws Exception {
+    ServiceDiscoveryClient primary = mock(ServiceDiscoveryClient.class);
+    when(primary.lookupService(any())).thenCallRealMethod();
+    when(primary.getService(any())).thenAnswer(invocation -> Stream.of(httpService));
+    ServiceDiscoveryClient secondary = mock(ServiceDiscoveryClient.class);
+    when(secondary.lookupService(any())).thenCallRealMethod();
+
+    ServiceDiscoveryClient client = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(primary, secondary))
+        .withHedgingDelay(Duration.of(1, ChronoUnit.SECONDS))
+        .build();
+
+    List<Service> services = client.getService(query).collect(Collectors.toList());
+    assertEquals(Collections.singletonList(httpService), services);
+    verify(secondary, never()).getService(any());
+    client.close();
+  }
+}
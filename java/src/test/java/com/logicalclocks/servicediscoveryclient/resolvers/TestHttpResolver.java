@@ -17,39 +17,56 @@ package com.logicalclocks.servicediscoveryclient.resolvers;
 
 import com.logicalclocks.servicediscoverclient.Builder;
 import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
 import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.Consistency;
 import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
 import com.logicalclocks.servicediscoverclient.service.Service;
 import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
 import com.orbitz.consul.Consul;
 import com.orbitz.consul.HealthClient;
 import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.ImmutableTaggedAddresses;
 import com.orbitz.consul.model.health.ImmutableNode;
 import com.orbitz.consul.model.health.ImmutableService;
 import com.orbitz.consul.model.health.ImmutableServiceHealth;
 import com.orbitz.consul.model.health.Node;
 import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.QueryOptions;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.ConnectionPool;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.ssl.TrustStrategy;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.cert.CertificateException;
+import java.time.Duration;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
@@ -62,13 +79,29 @@ public class TestHttpResolver {
   private final Path PASSPHRASE = Paths.get(System.getProperty("java.io.tmpdir"), "passphrase");
   private final BigInteger RESPONSE_INDEX = BigInteger.ONE;
   
+  private static final String HEALTH_RESPONSE = "[" +
+      "{\"Node\":{\"ID\":\"n0\",\"Node\":\"node0\",\"Address\":\"10.0.0.1\",\"Datacenter\":\"dc1\"," +
+      "\"TaggedAddresses\":{\"lan\":\"10.0.0.1\"},\"Meta\":{\"zone\":\"a\"}}," +
+      "\"Service\":{\"ID\":\"s0\",\"Service\":\"service0\",\"Tags\":[\"rpc\"],\"Address\":\"\"," +
+      "\"Meta\":null,\"Port\":8080,\"Weights\":{\"Passing\":1,\"Warning\":1}}," +
+      "\"Checks\":[{\"Node\":\"node0\",\"CheckID\":\"serfHealth\",\"Status\":\"passing\"}]}," +
+      "{\"Node\":{\"ID\":\"n1\",\"Node\":\"node1\",\"Address\":\"10.0.0.2\",\"Datacenter\":\"dc1\"," +
+      "\"Meta\":{\"rack\":\"r1\",\"zone\":\"b\"}}," +
+      "\"Service\":{\"ID\":\"s1\",\"Service\":\"service0\",\"Tags\":[],\"Port\":8081}," +
+      "\"Checks\":[]}" +
+      "]";
+  
   private ServiceDiscoveryClient client;
+  private HttpServer server;
   
   @AfterEach
   public void afterAll() {
     if (client != null) {
       client.close();
     }
+    if (server != null) {
+      server.stop(0);
+    }
   }
   
   @Test
@@ -180,6 +213,67 @@ public class TestHttpResolver {
     assertEquals(2, count);
   }
   
+  @Test
+  public void testQueryWithoutTagsMock() throws Exception {
+    HealthClient hc = mock(HealthClient.class);
+    when(hc.getHealthyServiceInstances(any(), any()))
+        .thenReturn(constructConsulResponse(new ArrayList<ServiceHealth>()));
+    Consul consulClient = mock(Consul.class);
+    when(consulClient.healthClient()).thenReturn(hc);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.builder()
+        .name("service0")
+        .build();
+    assertTrue(sq.getTags().isEmpty());
+    assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(sq).getStatus());
+    ArgumentCaptor<QueryOptions> queryOptions = ArgumentCaptor.forClass(QueryOptions.class);
+    verify(hc).getHealthyServiceInstances(eq("service0"), queryOptions.capture());
+    assertTrue(queryOptions.getValue().getTag().isEmpty());
+    
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    startServer(HEALTH_RESPONSE, requestQuery);
+    client.close();
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpLightweightParsing()
+        .build();
+    assertEquals(2, client.getService(sq).count());
+    assertEquals("passing", requestQuery.get());
+  }
+  
+  @Test
+  public void testServiceDetailsMock() throws Exception {
+    Node node0 = ImmutableNode.builder().node("node0").address("10.0.0.1").datacenter("dc1")
+        .taggedAddresses(ImmutableTaggedAddresses.builder().lan("10.0.0.1").wan("192.168.0.1").build())
+        .build();
+    com.orbitz.consul.model.health.Service service0 = ImmutableService.builder().id("s0").service("service0")
+        .address("10.0.0.1").port(8080).addTags("rpc").putMeta("version", "2").build();
+    ServiceHealth sh0 = ImmutableServiceHealth.builder().node(node0).service(service0).build();
+    
+    HealthClient hc = mock(HealthClient.class);
+    when(hc.getHealthyServiceInstances(any(), any()))
+        .thenReturn(constructConsulResponse(Collections.singletonList(sh0)));
+    Consul consulClient = mock(Consul.class);
+    when(consulClient.healthClient()).thenReturn(hc);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .build();
+    
+    Service service = client.getService(ServiceQuery.of("service0", Collections.emptySet())).findFirst().get();
+    assertEquals(Service.of("service0", "10.0.0.1", 8080), service);
+    assertEquals("s0", service.getId());
+    assertEquals(Collections.singletonList("rpc"), service.getTags());
+    assertEquals("2", service.getMeta().get("version"));
+    assertEquals("192.168.0.1", service.getTaggedAddresses().get("wan"));
+    assertEquals("10.0.0.1", service.getTaggedAddresses().get("lan"));
+    assertEquals("dc1", service.getDatacenter());
+  }
+  
   @Test
   public void testNoHealthyNodesMock() throws Exception {
     List<ServiceHealth> response = new ArrayList<>(0);
@@ -197,6 +291,407 @@ public class TestHttpResolver {
     });
   }
   
+  @Test
+  public void testNotFoundLookupMock() throws Exception {
+    HealthClient hc = mock(HealthClient.class);
+    when(hc.getHealthyServiceInstances(any(), any())).thenReturn(constructConsulResponse(new ArrayList<>(0)));
+    Consul consulClient = mock(Consul.class);
+    when(consulClient.healthClient()).thenReturn(hc);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet());
+    LookupResult result = client.lookupService(sq);
+    assertEquals(LookupResult.Status.NOT_FOUND, result.getStatus());
+    assertNull(result.getError());
+    assertEquals(0, result.getServices().count());
+    ServiceNotFoundException ex = assertThrows(ServiceNotFoundException.class, () -> client.getService(sq));
+    assertEquals(0, ex.getStackTrace().length);
+  }
+  
+  @Test
+  public void testNotFoundLookupLightweightMock() throws Exception {
+    startServer("[]", new AtomicReference<>());
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpLightweightParsing()
+        .build();
+    
+    LookupResult result = client.lookupService(ServiceQuery.of("service0", Collections.emptySet()));
+    assertEquals(LookupResult.Status.NOT_FOUND, result.getStatus());
+    assertNull(result.getError());
+  }
+  
+  @Test
+  public void testSharedClientNotDestroyed() throws Exception {
+    Consul consulClient = mock(Consul.class);
+    ServiceDiscoveryClient client0 = new Builder(Type.HTTP)
+        .withSharedClient(consulClient)
+        .build();
+    ServiceDiscoveryClient client1 = new Builder(Type.HTTP)
+        .withSharedClient(consulClient)
+        .build();
+    client0.close();
+    client1.close();
+    verify(consulClient, never()).destroy();
+    
+    ServiceDiscoveryClient owningClient = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .build();
+    owningClient.close();
+    verify(consulClient, times(1)).destroy();
+  }
+  
+  @Test
+  public void testExternalConnectionPoolNotEvicted() throws Exception {
+    startServer(HEALTH_RESPONSE, new AtomicReference<>());
+    // Answers the ping of the Consul client
+    server.createContext("/v1/agent/self", exchange -> {
+      byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    ConnectionPool pool = new ConnectionPool();
+    client = new Builder(Type.HTTP)
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpConnectionPool(pool)
+        .withHttpLightweightParsing()
+        .build();
+    
+    assertEquals(2, client.getService(ServiceQuery.of("service0", Collections.emptySet())).count());
+    assertTrue(pool.idleConnectionCount() > 0);
+    client.close();
+    // The pool belongs to the caller, its connections outlive the resolver
+    assertTrue(pool.idleConnectionCount() > 0);
+    pool.evictAll();
+  }
+  
+  @Test
+  public void testLightweightParsingMock() throws Exception {
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    startServer(HEALTH_RESPONSE, requestQuery);
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpLightweightParsing()
+        .build();
+    
+    Map<String, String> nodeMeta = new HashMap<>();
+    nodeMeta.put("zone", "a");
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.singleton("rpc")).toBuilder()
+        .nodeMeta(nodeMeta)
+        .near("_agent")
+        .build();
+    List<Service> services = client.getService(sq).collect(Collectors.toList());
+    assertEquals(2, services.size());
+    assertEquals(Service.of("service0", "10.0.0.1", 8080), services.get(0));
+    assertEquals(Service.of("service0", "10.0.0.2", 8081), services.get(1));
+    assertEquals("s0", services.get(0).getId());
+    assertEquals(Collections.singletonList("rpc"), services.get(0).getTags());
+    assertTrue(services.get(1).getTags().isEmpty());
+    
+    String query = requestQuery.get();
+    assertTrue(query.contains("passing"));
+    assertTrue(query.contains("tag=rpc"));
+    assertTrue(query.contains("node-meta=zone:a"));
+    assertTrue(query.contains("near=_agent"));
+  }
+  
+  @Test
+  public void testLightweightServiceDetailsMock() throws Exception {
+    startServer("[" +
+        "{\"Node\":{\"Node\":\"node0\",\"Address\":\"10.0.0.1\",\"Datacenter\":\"dc1\"," +
+        "\"TaggedAddresses\":{\"lan\":\"10.0.0.1\",\"lan_ipv4\":\"10.0.0.1\",\"wan\":\"192.168.0.1\"}," +
+        "\"Meta\":{\"zone\":\"a\"}}," +
+        "\"Service\":{\"ID\":\"s0\",\"Service\":\"service0\",\"Tags\":[\"rpc\"]," +
+        "\"Meta\":{\"version\":\"2\"},\"Port\":8080}," +
+        "\"Checks\":[]}" +
+        "]", new AtomicReference<>());
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpLightweightParsing()
+        .build();
+    
+    // Same details as the consul-client path, see testServiceDetailsMock
+    Service service = client.getService(ServiceQuery.of("service0", Collections.emptySet())).findFirst().get();
+    assertEquals("s0", service.getId());
+    assertEquals(Collections.singletonList("rpc"), service.getTags());
+    assertEquals(Collections.singletonMap("version", "2"), service.getMeta());
+    assertEquals(2, service.getTaggedAddresses().size());
+    assertEquals("10.0.0.1", service.getTaggedAddresses().get("lan"));
+    assertEquals("192.168.0.1", service.getTaggedAddresses().get("wan"));
+    assertEquals("dc1", service.getDatacenter());
+  }
+  
+  @Test
+  public void testStreamingResponsesMock() throws Exception {
+    startServer(HEALTH_RESPONSE, new AtomicReference<>());
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpStreamingResponses()
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet());
+    List<Service> services = client.getService(sq).collect(Collectors.toList());
+    assertEquals(2, services.size());
+    assertEquals(Service.of("service0", "10.0.0.1", 8080), services.get(0));
+    assertEquals(Service.of("service0", "10.0.0.2", 8081), services.get(1));
+    
+    try (Stream<Service> stream = client.getService(sq)) {
+      assertEquals(Service.of("service0", "10.0.0.1", 8080), stream.findFirst().get());
+    }
+  }
+  
+  @Test
+  public void testStreamingResponsesNotFoundMock() throws Exception {
+    startServer("[]", new AtomicReference<>());
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpStreamingResponses()
+        .build();
+    
+    assertThrows(ServiceNotFoundException.class, () -> {
+      client.getService(ServiceQuery.of("service0", Collections.emptySet()));
+    });
+  }
+  
+  @Test
+  public void testCachedConsistencyMock() throws Exception {
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    AtomicReference<String> cacheControl = new AtomicReference<>();
+    startServer(HEALTH_RESPONSE, requestQuery, cacheControl);
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpLightweightParsing()
+        .withHttpConsistency(Consistency.CACHED)
+        .withHttpCacheMaxAge(Duration.ofSeconds(5))
+        .withHttpCacheStaleIfError(Duration.ofSeconds(60))
+        .build();
+    
+    assertEquals(2, client.getService(ServiceQuery.of("service0", Collections.emptySet())).count());
+    assertEquals("passing&cached", requestQuery.get());
+    assertEquals("max-age=5,stale-if-error=60", cacheControl.get());
+  }
+  
+  @Test
+  public void testStaleConsistencyMock() throws Exception {
+    HealthClient hc = mock(HealthClient.class);
+    when(hc.getHealthyServiceInstances(any(), any()))
+        .thenReturn(constructConsulResponse(new ArrayList<ServiceHealth>()));
+    Consul consulClient = mock(Consul.class);
+    when(consulClient.healthClient()).thenReturn(hc);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .withHttpConsistency(Consistency.STALE)
+        .build();
+    
+    assertThrows(ServiceNotFoundException.class, () -> {
+      client.getService(ServiceQuery.of("service0", Collections.emptySet()));
+    });
+    ArgumentCaptor<QueryOptions> queryOptions = ArgumentCaptor.forClass(QueryOptions.class);
+    verify(hc).getHealthyServiceInstances(eq("service0"), queryOptions.capture());
+    assertEquals(ConsistencyMode.STALE, queryOptions.getValue().getConsistencyMode());
+  }
+  
+  @Test
+  public void testPreferredZoneLightweightMock() throws Exception {
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    startServer(HEALTH_RESPONSE, requestQuery);
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .withHttpStreamingResponses()
+        .withHttpNear("_agent")
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet()).toBuilder()
+        .preferredZone("b")
+        .build();
+    List<Service> services = client.getService(sq).collect(Collectors.toList());
+    assertEquals(2, services.size());
+    assertEquals(Service.of("service0", "10.0.0.2", 8081), services.get(0));
+    assertEquals(Service.of("service0", "10.0.0.1", 8080), services.get(1));
+    assertEquals("passing&near=_agent", requestQuery.get());
+  }
+  
+  @Test
+  public void testPreferredZoneMock() throws Exception {
+    Node node0 = ImmutableNode.builder().node("node0").address("10.0.0.1")
+        .nodeMeta(Collections.singletonMap("zone", "a")).build();
+    Node node1 = ImmutableNode.builder().node("node1").address("10.0.0.2")
+        .nodeMeta(Collections.singletonMap("zone", "b")).build();
+    Node node2 = ImmutableNode.builder().node("node2").address("10.0.0.3").build();
+    List<ServiceHealth> response = new ArrayList<>(3);
+    for (Node node : new Node[]{node0, node1, node2}) {
+      com.orbitz.consul.model.health.Service service =
+          ImmutableService.builder().id(node.getNode()).service("service0").address(node.getAddress()).port(8080)
+              .build();
+      response.add(ImmutableServiceHealth.builder().node(node).service(service).build());
+    }
+    HealthClient hc = mock(HealthClient.class);
+    when(hc.getHealthyServiceInstances(any(), any())).thenReturn(constructConsulResponse(response));
+    Consul consulClient = mock(Consul.class);
+    when(consulClient.healthClient()).thenReturn(hc);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .withHttpNear("_agent")
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet()).toBuilder()
+        .preferredZone("b")
+        .build();
+    List<String> addresses = client.getService(sq).map(Service::getAddress).collect(Collectors.toList());
+    assertEquals(Arrays.asList("10.0.0.2", "10.0.0.1", "10.0.0.3"), addresses);
+    ArgumentCaptor<QueryOptions> queryOptions = ArgumentCaptor.forClass(QueryOptions.class);
+    verify(hc).getHealthyServiceInstances(eq("service0"), queryOptions.capture());
+    assertEquals("_agent", queryOptions.getValue().getNear().get());
+  }
+  
+  @Test
+  public void testFilterUsesLightweightPathMock() throws Exception {
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    startServer("[]", requestQuery);
+    Consul consulClient = mock(Consul.class);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet()).toBuilder()
+        .filter("Service.Meta.version == \"2\"")
+        .build();
+    assertThrows(ServiceNotFoundException.class, () -> {
+      client.getService(sq);
+    });
+    assertEquals("passing&filter=Service.Meta.version == \"2\"", requestQuery.get());
+    verify(consulClient, never()).healthClient();
+  }
+  
+  @Test
+  public void testClientWithoutAddressMock() throws Exception {
+    Consul consulClient = mock(Consul.class);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .build();
+    
+    // The filter cannot be sent through consul-client nor to a default agent which may not be the client's
+    ServiceQuery sq = ServiceQuery.of("service0", Collections.emptySet()).toBuilder()
+        .filter("Service.Meta.version == \"2\"")
+        .build();
+    assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      client.getService(sq);
+    });
+    verify(consulClient, never()).healthClient();
+    
+    assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      new Builder(Type.HTTP)
+          .withSharedClient(consulClient)
+          .withHttpLightweightParsing()
+          .build();
+    });
+  }
+  
+  @Test
+  public void testHttpsInitMock() throws Exception {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, null, null);
+    client = new Builder(Type.HTTP)
+        .withClient(mock(Consul.class))
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(1)
+        .withHttps()
+        .withSSLContext(sslContext)
+        .withHttpLightweightParsing()
+        .build();
+    
+    // The lightweight client is built on first use, failing to connect rather than to configure TLS
+    ServiceDiscoveryGenericException ex = assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      client.getService(ServiceQuery.of("service0", Collections.emptySet()));
+    });
+    assertTrue(ex.getCause() instanceof IOException);
+  }
+  
+  @Test
+  public void testPreparedQueryMock() throws Exception {
+    AtomicReference<String> requestQuery = new AtomicReference<>();
+    String response = "{\"Service\":\"service0\",\"Nodes\":" + HEALTH_RESPONSE + ",\"DNS\":{\"TTL\":\"\"},"
+        + "\"Datacenter\":\"dc2\",\"Failovers\":1}";
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/v1/query/", exchange -> {
+      requestQuery.set(exchange.getRequestURI().getQuery());
+      boolean found = exchange.getRequestURI().getPath().equals("/v1/query/service0-failover/execute");
+      byte[] body = (found ? response : "Query not found").getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    Consul consulClient = mock(Consul.class);
+    client = new Builder(Type.HTTP)
+        .withClient(consulClient)
+        .withHttpHost("127.0.0.1")
+        .withHttpPort(server.getAddress().getPort())
+        .build();
+    
+    ServiceQuery sq = ServiceQuery.builder()
+        .name("service0-failover")
+        .preparedQuery(true)
+        .datacenter("dc1")
+        .near("_agent")
+        .build();
+    List<Service> services = client.getService(sq).collect(Collectors.toList());
+    assertEquals(Arrays.asList(Service.of("service0", "10.0.0.1", 8080), Service.of("service0", "10.0.0.2", 8081)),
+        services);
+    assertEquals("near=_agent&dc=dc1", requestQuery.get());
+    verify(consulClient, never()).healthClient();
+    
+    ServiceQuery missing = sq.toBuilder()
+        .name("service1-failover")
+        .build();
+    assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(missing).getStatus());
+    assertThrows(ServiceDiscoveryGenericException.class, () -> {
+      client.getService(sq.toBuilder().tags(Collections.singleton("rpc")).build());
+    });
+  }
+  
+  private void startServer(String response, AtomicReference<String> requestQuery) throws Exception {
+    startServer(response, requestQuery, new AtomicReference<>());
+  }
+  
+  private void startServer(String response, AtomicReference<String> requestQuery,
+      AtomicReference<String> cacheControl) throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/v1/health/service/service0", exchange -> {
+      requestQuery.set(exchange.getRequestURI().getQuery());
+      cacheControl.set(exchange.getRequestHeaders().getFirst("Cache-Control"));
+      byte[] body = response.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+  }
+  
   private SSLContext createSSLContext() throws Exception {
     String passphrase = new String(Files.readAllBytes(PASSPHRASE));
     passphrase = passphrase.trim();
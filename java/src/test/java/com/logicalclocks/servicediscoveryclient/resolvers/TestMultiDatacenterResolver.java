@@ -0,0 +1,124 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.DatacenterFanOut;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestMultiDatacenterResolver {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  private final Service dc1Node = Service.of("service0", "10.0.0.1", 8080);
+  private final Service dc2Node = Service.of("service0", "10.1.0.1", 8080);
+  private final Service dc3Node = Service.of("service0", "10.2.0.1", 8080);
+  
+  @Test
+  public void testNearestFallsThroughMissingDatacenters() throws Exception {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("dc1", null);
+    answers.put("dc2", Collections.singletonList(dc2Node));
+    answers.put("dc3", Collections.singletonList(dc3Node));
+    ServiceDiscoveryClient client = multiDatacenter(delegate(answers, 0), DatacenterFanOut.NEAREST);
+    
+    assertEquals(Collections.singletonList(dc2Node), client.getService(query).collect(Collectors.toList()));
+    // A given datacenter is queried directly
+    assertEquals(Collections.singletonList(dc3Node),
+        client.getService(query.toBuilder().datacenter("dc3").build()).collect(Collectors.toList()));
+    
+    answers.put("dc2", null);
+    answers.put("dc3", null);
+    assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(query).getStatus());
+    assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+    
+    // A failure is not hidden by the other datacenters missing the service
+    answers.put("dc2", new ServiceDiscoveryGenericException("Connection refused"));
+    assertEquals(LookupResult.Status.ERROR, client.lookupService(query).getStatus());
+  }
+  
+  @Test
+  public void testMergeInOrderOfPreference() throws Exception {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("dc1", Collections.singletonList(dc1Node));
+    answers.put("dc2", new ServiceDiscoveryGenericException("Connection refused"));
+    answers.put("dc3", Collections.singletonList(dc3Node));
+    ServiceDiscoveryClient client = multiDatacenter(delegate(answers, 0), DatacenterFanOut.MERGE);
+    
+    assertEquals(Arrays.asList(dc1Node, dc3Node), client.getService(query).collect(Collectors.toList()));
+  }
+  
+  @Test
+  public void testDatacentersQueriedInParallel() throws Exception {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("dc1", null);
+    answers.put("dc2", null);
+    answers.put("dc3", Collections.singletonList(dc3Node));
+    ServiceDiscoveryClient client = multiDatacenter(delegate(answers, 500), DatacenterFanOut.NEAREST);
+    
+    long start = System.nanoTime();
+    assertEquals(Collections.singletonList(dc3Node), client.getService(query).collect(Collectors.toList()));
+    // Sequential failover would take 1500 ms
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1200));
+  }
+  
+  /**
+   * @param answers Instances, null for a missing service or the failure, by datacenter
+   */
+  @SuppressWarnings("unchecked")
+  private ServiceDiscoveryClient delegate(Map<String, Object> answers, long delayMillis) {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenAnswer(invocation -> {
+      ServiceQuery service = invocation.getArgument(0);
+      TimeUnit.MILLISECONDS.sleep(delayMillis);
+      Object answer = answers.get(service.getDatacenter());
+      if (answer == null) {
+        return LookupResult.notFound(service);
+      }
+      if (answer instanceof ServiceDiscoveryGenericException) {
+        return LookupResult.error((ServiceDiscoveryGenericException) answer);
+      }
+      return LookupResult.found(((List<Service>) answer).stream());
+    });
+    return delegate;
+  }
+  
+  private ServiceDiscoveryClient multiDatacenter(ServiceDiscoveryClient delegate, DatacenterFanOut fanOut)
+      throws Exception {
+    return new Builder(Type.MULTI_DATACENTER)
+        .withServiceDiscoveryClient(delegate)
+        .withDatacenters(Arrays.asList("dc1", "dc2", "dc3"))
+        .withDatacenterFanOut(fanOut)
+        .build();
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.resolvers.OutlierDetectionResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestOutlierDetectionResolver {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  private final Service node0 = Service.of("service0", "10.0.0.1", 8080);
+  private final Service node1 = Service.of("service0", "10.0.0.2", 8080);
+  private final Service node2 = Service.of("service0", "10.0.0.3", 8080);
+  private final Service node3 = Service.of("service0", "10.0.0.4", 8080);
+  private final Duration fast = Duration.of(10, ChronoUnit.MILLIS);
+  private final AtomicLong clock = new AtomicLong();
+  private OutlierDetectionResolver client;
+  
+  @BeforeEach
+  public void setUp() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> Stream.of(node0, node1, node2, node3));
+    client = new OutlierDetectionResolver() {
+      @Override
+      protected long nanoTime() {
+        return clock.get();
+      }
+    };
+    client.init(new Builder(Type.OUTLIER_DETECTION)
+        .withServiceDiscoveryClient(delegate)
+        .withOutlierConsecutiveFailures(3)
+        .withOutlierMinimumRequests(5)
+        .withOutlierBaseEjectionDuration(Duration.of(30, ChronoUnit.SECONDS)));
+  }
+  
+  @Test
+  public void testConsecutiveFailures() throws Exception {
+    client.reportFailure(node1);
+    client.reportFailure(node1);
+    client.reportSuccess(node1, fast);
+    client.reportFailure(node1);
+    client.reportFailure(node1);
+    assertEquals(Arrays.asList(node0, node1, node2, node3), resolve());
+    
+    client.reportFailure(node1);
+    assertTrue(client.isEjected(node1));
+    assertEquals(Arrays.asList(node0, node2, node3), resolve());
+    assertEquals(1, client.getEjectionCount());
+    
+    // Back after the base ejection duration, then ejected for twice as long
+    advance(31);
+    assertEquals(Arrays.asList(node0, node1, node2, node3), resolve());
+    for (int i = 0; i < 3; i++) {
+      client.reportFailure(node1);
+    }
+    advance(31);
+    assertEquals(Arrays.asList(node0, node2, node3), resolve());
+    advance(30);
+    assertEquals(Arrays.asList(node0, node1, node2, node3), resolve());
+  }
+  
+  @Test
+  public void testLatencyOutlier() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      client.reportSuccess(node0, fast);
+      client.reportSuccess(node1, fast);
+      client.reportSuccess(node2, Duration.of(12, ChronoUnit.MILLIS));
+      client.reportSuccess(node3, Duration.of(200, ChronoUnit.MILLIS));
+    }
+    assertEquals(Arrays.asList(node0, node1, node2), resolve());
+    assertTrue(client.isEjected(node3));
+  }
+  
+  @Test
+  public void testLatencyMedianIncludesInstance() throws Exception {
+    // Compared to the median of the others node2 and node3 would be more than 3 times slower
+    for (int i = 0; i < 5; i++) {
+      client.reportSuccess(node0, fast);
+      client.reportSuccess(node1, fast);
+      client.reportSuccess(node2, Duration.of(35, ChronoUnit.MILLIS));
+      client.reportSuccess(node3, Duration.of(35, ChronoUnit.MILLIS));
+    }
+    assertEquals(Arrays.asList(node0, node1, node2, node3), resolve());
+    assertEquals(0, client.getEjectionCount());
+  }
+  
+  @Test
+  public void testMaxEjectionPercent() throws Exception {
+    for (Service node : Arrays.asList(node0, node1, node2, node3)) {
+      for (int i = 0; i < 3; i++) {
+        client.reportFailure(node);
+      }
+    }
+    // At most half of the instances are left out
+    assertEquals(Arrays.asList(node2, node3), resolve());
+  }
+  
+  private List<Service> resolve() throws Exception {
+    return client.getService(query).collect(Collectors.toList());
+  }
+  
+  private void advance(long seconds) {
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestSharedCacheResolver {
+  private final List<Service> services = Arrays.asList(Service.of("service0", "10.0.0.1", 8080),
+      Service.of("service0", "2001:db8::1", 8080));
+  private final ServiceQuery query = ServiceQuery.of("service0", new HashSet<>(Arrays.asList("rpc", "v2")));
+  private Path file;
+  private final List<ServiceDiscoveryClient> clients = new ArrayList<>();
+  
+  @BeforeEach
+  public void setup() throws Exception {
+    file = Files.createTempFile("service-discovery", ".cache");
+    Files.delete(file);
+  }
+  
+  @AfterEach
+  public void tearDown() throws Exception {
+    clients.forEach(ServiceDiscoveryClient::close);
+    Files.deleteIfExists(file);
+  }
+  
+  @Test
+  public void testSharedBetweenClients() throws Exception {
+    ServiceDiscoveryClient delegate0 = delegate(services);
+    ServiceDiscoveryClient delegate1 = delegate(services);
+    ServiceDiscoveryClient client0 = sharedCache(delegate0, Duration.ofMinutes(1));
+    ServiceDiscoveryClient client1 = sharedCache(delegate1, Duration.ofMinutes(1));
+    
+    assertEquals(services, client0.getService(query).collect(Collectors.toList()));
+    // Same query with the tags in another order, answered from the file
+    ServiceQuery reordered = ServiceQuery.of("service0", new HashSet<>(Arrays.asList("v2", "rpc")));
+    assertEquals(services, client1.getService(reordered).collect(Collectors.toList()));
+    assertEquals(services, client0.getService(query).collect(Collectors.toList()));
+    verify(delegate0, times(1)).getService(any());
+    verify(delegate1, never()).getService(any());
+    
+    // Another query is loaded separately
+    ServiceQuery other = ServiceQuery.of("service0", Collections.emptySet());
+    client1.getService(other);
+    verify(delegate1, times(1)).getService(any());
+  }
+  
+  @Test
+  public void testKeyedByDatacenterAndPreparedQuery() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> {
+      ServiceQuery service = invocation.getArgument(0);
+      String address = service.isPreparedQuery() ? "10.9.0.1"
+          : "dc2".equals(service.getDatacenter()) ? "10.2.0.1" : "10.0.0.1";
+      return Stream.of(Service.of("service0", address, 8080));
+    });
+    ServiceDiscoveryClient client = sharedCache(delegate, Duration.ofMinutes(1));
+    
+    assertEquals("10.0.0.1", client.getService(query).findFirst().get().getAddress());
+    ServiceQuery dc2 = query.toBuilder().datacenter("dc2").build();
+    assertEquals("10.2.0.1", client.getService(dc2).findFirst().get().getAddress());
+    ServiceQuery prepared = ServiceQuery.builder()
+        .name("service0")
+        .preparedQuery(true)
+        .build();
+    assertEquals("10.9.0.1", client.getService(prepared).findFirst().get().getAddress());
+    assertEquals("10.2.0.1", client.getService(dc2).findFirst().get().getAddress());
+    verify(delegate, times(3)).getService(any());
+  }
+  
+  @Test
+  public void testExpiration() throws Exception {
+    ServiceDiscoveryClient delegate0 = delegate(services);
+    ServiceDiscoveryClient delegate1 = delegate(services.subList(0, 1));
+    ServiceDiscoveryClient client0 = sharedCache(delegate0, Duration.ofMillis(100));
+    ServiceDiscoveryClient client1 = sharedCache(delegate1, Duration.ofMillis(100));
+    
+    assertEquals(2, client0.getService(query).count());
+    TimeUnit.MILLISECONDS.sleep(150);
+    assertEquals(1, client1.getService(query).count());
+    assertEquals(1, client0.getService(query).count());
+    verify(delegate0, times(1)).getService(any());
+    verify(delegate1, times(1)).getService(any());
+  }
+  
+  @Test
+  public void testCorruptedSlotIsMiss() throws Exception {
+    ServiceDiscoveryClient delegate0 = delegate(services);
+    ServiceDiscoveryClient client0 = sharedCache(delegate0, Duration.ofMinutes(1));
+    client0.getService(query);
+    
+    // Flip every payload byte of every slot, as a torn write would leave them
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      for (long slot = 0; slot < 16; slot++) {
+        long payload = 64 + slot * 512 + 24;
+        raf.seek(payload);
+        int b = raf.read();
+        raf.seek(payload);
+        raf.write(b ^ 0xff);
+      }
+    }
+    assertEquals(services, client0.getService(query).collect(Collectors.toList()));
+    verify(delegate0, times(2)).getService(any());
+  }
+  
+  @Test
+  public void testLargeAnswerNotShared() throws Exception {
+    List<Service> many = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      many.add(Service.of("service0", "10.0.0." + i, 8080));
+    }
+    ServiceDiscoveryClient delegate0 = delegate(many);
+    ServiceDiscoveryClient client0 = sharedCache(delegate0, Duration.ofMinutes(1));
+    assertEquals(many, client0.getService(query).collect(Collectors.toList()));
+    assertEquals(many, client0.getService(query).collect(Collectors.toList()));
+    verify(delegate0, times(2)).getService(any());
+  }
+  
+  @Test
+  public void testForeignFileNotOverwritten() throws Exception {
+    byte[] content = "not a shared cache".getBytes(StandardCharsets.UTF_8);
+    Files.write(file, content);
+    assertThrows(ServiceDiscoveryGenericException.class, () -> sharedCache(delegate(services), Duration.ofMinutes(1)));
+    assertArrayEquals(content, Files.readAllBytes(file));
+    
+    // An existing empty file is initialized
+    Files.write(file, new byte[0]);
+    ServiceDiscoveryClient client0 = sharedCache(delegate(services), Duration.ofMinutes(1));
+    assertEquals(services, client0.getService(query).collect(Collectors.toList()));
+  }
+  
+  @Test
+  public void testNotFoundWithoutException() throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenReturn(LookupResult.notFound(query));
+    ServiceDiscoveryClient client = sharedCache(delegate, Duration.ofMinutes(1));
+    
+    // Misses are not cached
+    assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(query).getStatus());
+    assertThrows(ServiceNotFoundException.class, () -> client.getService(query));
+    verify(delegate, times(2)).lookupService(query);
+    verify(delegate, never()).getService(any());
+  }
+  
+  private ServiceDiscoveryClient delegate(List<Service> answer) throws Exception {
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> answer.stream());
+    return delegate;
+  }
+  
+  private ServiceDiscoveryClient sharedCache(ServiceDiscoveryClient delegate, Duration expiration) throws Exception {
+    ServiceDiscoveryClient client = new Builder(Type.SHARED_CACHE)
+        .withServiceDiscoveryClient(delegate)
+        .withSharedCachePath(file)
+        .withSharedCacheSlots(16)
+        .withSharedCacheSlotSize(512)
+        .withCacheExpiration(expiration)
+        .build();
+    clients.add(client);
+    return client;
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestSubsettingResolver {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  
+  @Test
+  public void testBalancedSubsets() throws Exception {
+    List<Service> instances = instances(20);
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> instances.stream());
+    
+    Map<Service, Integer> clientsPerInstance = new HashMap<>();
+    for (int c = 0; c < 1000; c++) {
+      ServiceDiscoveryClient client = subsetting(delegate, "client" + c);
+      List<Service> subset = client.getService(query).collect(Collectors.toList());
+      assertEquals(5, subset.size());
+      // Deterministic and in the order of the underlying answer
+      assertEquals(subset, client.getService(query).collect(Collectors.toList()));
+      List<Service> ordered = new ArrayList<>(instances);
+      ordered.retainAll(subset);
+      assertEquals(ordered, subset);
+      subset.forEach(s -> clientsPerInstance.merge(s, 1, Integer::sum));
+    }
+    // 1000 clients * 5 / 20 instances = 250 clients per instance on average
+    assertEquals(20, clientsPerInstance.size());
+    clientsPerInstance.values().forEach(clients ->
+        assertTrue(clients > 150 && clients < 350, "Unbalanced subsets " + clientsPerInstance));
+  }
+  
+  @Test
+  public void testStableUnderChurn() throws Exception {
+    AtomicReference<List<Service>> instances = new AtomicReference<>(instances(20));
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> instances.get().stream());
+    ServiceDiscoveryClient client = subsetting(delegate, "client0");
+    Set<Service> subset = client.getService(query).collect(Collectors.toSet());
+    
+    // Removing an instance outside of the subset does not change it
+    List<Service> withoutOther = new ArrayList<>(instances.get());
+    Service other = withoutOther.stream().filter(s -> !subset.contains(s)).findFirst().get();
+    withoutOther.remove(other);
+    instances.set(withoutOther);
+    assertEquals(subset, client.getService(query).collect(Collectors.toSet()));
+    
+    // Removing an instance of the subset only replaces that instance
+    List<Service> withoutMember = new ArrayList<>(withoutOther);
+    Service member = subset.iterator().next();
+    withoutMember.remove(member);
+    instances.set(withoutMember);
+    Set<Service> updated = client.getService(query).collect(Collectors.toSet());
+    assertEquals(5, updated.size());
+    Set<Service> kept = new HashSet<>(subset);
+    kept.remove(member);
+    assertTrue(updated.containsAll(kept));
+  }
+  
+  @Test
+  public void testSmallerThanSubset() throws Exception {
+    List<Service> instances = instances(3);
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> instances.stream());
+    assertEquals(instances, subsetting(delegate, "client0").getService(query).collect(Collectors.toList()));
+  }
+  
+  private ServiceDiscoveryClient subsetting(ServiceDiscoveryClient delegate, String clientId) throws Exception {
+    return new Builder(Type.SUBSETTING)
+        .withServiceDiscoveryClient(delegate)
+        .withSubsetClientId(clientId)
+        .withSubsetSize(5)
+        .build();
+  }
+  
+  private List<Service> instances(int count) {
+    List<Service> instances = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      instances.add(Service.of("service0", "10.0.0." + i, 8080));
+    }
+    return instances;
+  }
+}
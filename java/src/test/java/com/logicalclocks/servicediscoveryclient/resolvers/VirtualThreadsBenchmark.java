@@ -0,0 +1,139 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.resolvers;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the executor running the hedged requests of {@link Type#FAILOVER} under many concurrent callers. The
+ * primary resolver blocks for 20ms, as a slow lookup over the network would, so every call hedges after 1ms
+ * with a secondary resolver blocking for 10ms and both requests run on the resolver's executor. The same pool
+ * of caller threads is used for the default platform threads executor and for {@code withVirtualThreads()},
+ * and the peak number of live platform threads is reported along with the throughput.
+ *
+ * Not a test, run it on JDK 21 or later to include virtual threads:
+ * {@code java -cp target/test-classes:target/classes:<dependencies> \
+ *   com.logicalclocks.servicediscoveryclient.resolvers.VirtualThreadsBenchmark [callers]}
+ */
+public class VirtualThreadsBenchmark {
+  private static final int CALLER_THREADS = 1000;
+  private static final long PRIMARY_MILLIS = 20;
+  private static final long SECONDARY_MILLIS = 10;
+  private static final Duration HEDGING_DELAY = Duration.ofMillis(1);
+  private static final int ROUNDS = 5;
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) throws Exception {
+    int callers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    best("Platform threads executor", false, callers);
+    if (!virtualThreadsAvailable()) {
+      System.out.println("Virtual threads are not available on this JVM");
+      return;
+    }
+    best("Virtual thread per request", true, callers);
+  }
+
+  /**
+   * Reports the best wall time of a few rounds, the first ones warm up the JIT and the thread scheduler
+   */
+  private static void best(String mode, boolean virtualThreads, int callers) throws Exception {
+    long best = Long.MAX_VALUE;
+    int peakThreads = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      THREADS.resetPeakThreadCount();
+      best = Math.min(best, run(virtualThreads, callers));
+      peakThreads = Math.max(peakThreads, THREADS.getPeakThreadCount());
+    }
+    double seconds = best / 1e9;
+    System.out.printf("%-28s %6d callers in %8.3fs, %10.0f lookups/s, %6d peak platform threads%n", mode,
+        callers, seconds, callers / seconds, peakThreads);
+  }
+
+  private static long run(boolean virtualThreads, int callers) throws Exception {
+    Builder builder = new Builder(Type.FAILOVER)
+        .withServiceDiscoveryClients(Arrays.asList(blocking(PRIMARY_MILLIS), blocking(SECONDARY_MILLIS)))
+        .withHedgingDelay(HEDGING_DELAY);
+    if (virtualThreads) {
+      builder.withVirtualThreads();
+    }
+    ServiceDiscoveryClient client = builder.build();
+    ExecutorService callerExecutor = Executors.newFixedThreadPool(CALLER_THREADS);
+    ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+    List<Future<Long>> results = new ArrayList<>(callers);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < callers; i++) {
+        results.add(callerExecutor.submit(() -> client.getService(query).count()));
+      }
+      for (Future<Long> result : results) {
+        result.get();
+      }
+      return System.nanoTime() - start;
+    } finally {
+      callerExecutor.shutdown();
+      callerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+      client.close();
+    }
+  }
+
+  private static ServiceDiscoveryClient blocking(long lookupMillis) {
+    return new ServiceDiscoveryClient() {
+      @Override
+      public void init(Builder builder) {
+      }
+
+      @Override
+      public Stream<Service> getService(ServiceQuery service) {
+        try {
+          Thread.sleep(lookupMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return Stream.of(Service.of(service.getName(), "10.0.0.1", 8080));
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
+}
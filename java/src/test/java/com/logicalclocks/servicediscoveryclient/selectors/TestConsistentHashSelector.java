@@ -0,0 +1,145 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.selectors;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceNotFoundException;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.selectors.ConsistentHashSelector;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TestConsistentHashSelector {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  
+  @Test
+  public void testKeysMoveOnlyWithTheirInstance() throws Exception {
+    List<Service> instances = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      instances.add(Service.of("service0", "10.0.0." + i, 8080));
+    }
+    AtomicReference<List<Service>> answer = new AtomicReference<>(instances);
+    ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+    when(client.lookupService(any())).thenCallRealMethod();
+    when(client.getService(any())).thenAnswer(invocation -> answer.get().stream());
+    // Resolved when created
+    ConsistentHashSelector selector = new ConsistentHashSelector(client, query);
+    assertEquals(10, selector.size());
+    
+    Map<String, Service> before = new HashMap<>();
+    Map<Service, Integer> load = new HashMap<>();
+    for (int k = 0; k < 10000; k++) {
+      Service selected = selector.select("key" + k);
+      before.put("key" + k, selected);
+      load.merge(selected, 1, Integer::sum);
+    }
+    // Keys spread over every instance
+    assertEquals(10, load.size());
+    load.values().forEach(keys -> assertTrue(keys > 500 && keys < 1500, "Unbalanced ring " + load));
+    
+    Service removed = instances.get(3);
+    Service added = Service.of("service0", "10.0.0.10", 8080);
+    List<Service> updated = new ArrayList<>(instances);
+    updated.remove(removed);
+    updated.add(added);
+    answer.set(updated);
+    selector.update();
+    assertEquals(10, selector.size());
+    
+    for (Map.Entry<String, Service> e : before.entrySet()) {
+      Service selected = selector.select(e.getKey());
+      if (e.getValue().equals(removed)) {
+        assertNotEquals(removed, selected);
+      } else if (!selected.equals(added)) {
+        // Only keys taken over by the new instance may move
+        assertEquals(e.getValue(), selected);
+      }
+    }
+  }
+  
+  @Test
+  public void testIncrementalUpdateMatchesFullBuild() throws Exception {
+    Service node0 = Service.of("service0", "10.0.0.1", 8080);
+    Service node1 = Service.of("service0", "10.0.0.2", 8080);
+    Service node2 = Service.of("service0", "10.0.0.3", 8080);
+    ServiceDiscoveryClient client = mock(ServiceDiscoveryClient.class);
+    when(client.lookupService(any())).thenReturn(LookupResult.notFound(query));
+    ConsistentHashSelector incremental = new ConsistentHashSelector(client, query, 50);
+    incremental.update(Arrays.asList(node0, node1));
+    incremental.update(Arrays.asList(node1, node2));
+    ConsistentHashSelector full = new ConsistentHashSelector(client, query, 50);
+    full.update(Arrays.asList(node2, node1));
+    for (int k = 0; k < 1000; k++) {
+      assertEquals(full.select("key" + k), incremental.select("key" + k));
+    }
+  }
+  
+  @Test
+  public void testUpdatedOnCacheRefresh() throws Exception {
+    AtomicReference<List<Service>> answer = new AtomicReference<>(
+        Collections.singletonList(Service.of("service0", "10.0.0.1", 8080)));
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation -> {
+      if (answer.get().isEmpty()) {
+        throw new ServiceNotFoundException(query);
+      }
+      return answer.get().stream();
+    });
+    ServiceDiscoveryClient cachingClient = new Builder(Type.CACHING)
+        .withServiceDiscoveryClient(delegate)
+        .withCacheExpiration(Duration.ofMillis(1))
+        .build();
+    ConsistentHashSelector selector = new ConsistentHashSelector(cachingClient, query);
+    assertEquals("10.0.0.1", selector.select("key").getAddress());
+    
+    answer.set(Collections.singletonList(Service.of("service0", "10.0.0.2", 8080)));
+    Thread.sleep(10);
+    cachingClient.getService(query).count();
+    assertEquals("10.0.0.2", selector.select("key").getAddress());
+    
+    // Emptied when the service disappears
+    answer.set(Collections.emptyList());
+    Thread.sleep(10);
+    assertEquals(LookupResult.Status.NOT_FOUND, cachingClient.lookupService(query).getStatus());
+    assertNull(selector.select("key"));
+    
+    answer.set(Collections.singletonList(Service.of("service0", "10.0.0.2", 8080)));
+    Thread.sleep(10);
+    cachingClient.getService(query).count();
+    selector.close();
+    answer.set(Collections.singletonList(Service.of("service0", "10.0.0.3", 8080)));
+    Thread.sleep(10);
+    cachingClient.getService(query).count();
+    assertEquals("10.0.0.2", selector.select("key").getAddress());
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.service;
+
+import com.google.common.net.InetAddresses;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestService {
+
+  @Test
+  public void testAddressRoundTrip() {
+    String[] addresses = new String[]{"10.0.0.1", "0.0.0.0", "255.255.255.255", "::1", "2001:db8::1",
+        "fe80::1:2:3:4", "node0.lc", "010.0.0.1", "10.0.0", "10.0.0.1.", "1.2.3.256", "0:0:0:0:0:0:0:1",
+        "::ffff:10.0.0.1"};
+    for (String address : addresses) {
+      Service service = Service.of("service0", address, 8080);
+      assertEquals(address, service.getAddress());
+      assertEquals(Integer.valueOf(8080), service.getPort());
+      assertEquals(Service.of("service0", address, 8080), service);
+      assertEquals(Service.of("service0", address, 8080).hashCode(), service.hashCode());
+    }
+  }
+
+  @Test
+  public void testEquality() {
+    assertNotEquals(Service.of("service0", "10.0.0.1", 8080), Service.of("service0", "10.0.0.2", 8080));
+    assertNotEquals(Service.of("service0", "10.0.0.1", 8080), Service.of("service0", "10.0.0.1", 8081));
+    assertNotEquals(Service.of("service0", "10.0.0.1", 8080), Service.of("service1", "10.0.0.1", 8080));
+    assertNotEquals(Service.of("service0", "0.0.0.0", 8080), Service.of("service0", null, 8080));
+    assertEquals(Service.of("service0", null, null), Service.of("service0", null, null));
+    assertNull(Service.of("service0", null, null).getAddress());
+    assertNull(Service.of("service0", null, null).getPort());
+  }
+
+  @Test
+  public void testAddressBytes() {
+    assertArrayEquals(new byte[]{10, 0, 0, (byte) 200}, Service.of("service0", "10.0.0.200", 8080).getAddressBytes());
+    assertEquals(16, Service.of("service0", "2001:db8::1", 8080).getAddressBytes().length);
+    assertNull(Service.of("service0", "node0.lc", 8080).getAddressBytes());
+    for (String address : new String[]{"10.0.0.200", "2001:db8::1"}) {
+      byte[] bytes = InetAddresses.forString(address).getAddress();
+      assertEquals(Service.of("service0", address, 8080), Service.ofAddressBytes("service0", bytes, 8080));
+    }
+    byte[] mapped = new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 10, 0, 0, 1};
+    assertEquals(Service.of("service0", "10.0.0.1", 8080), Service.ofAddressBytes("service0", mapped, 8080));
+  }
+
+  @Test
+  public void testInterning() {
+    String name0 = new String(new char[]{'s', 'e', 'r', 'v', 'i', 'c', 'e', '0'});
+    String name1 = new String(new char[]{'s', 'e', 'r', 'v', 'i', 'c', 'e', '0'});
+    assertNotSame(name0, name1);
+    assertSame(Service.of(name0, "10.0.0.1", 8080).getName(), Service.of(name1, "10.0.0.2", 8080).getName());
+  }
+}
@@ -0,0 +1,341 @@
+/**
+ * This file is part of service-discovery-clients
+ * Copyright (C) 2020, Logical Clocks AB. All rights reserved
+ *
+ * service-discovery-clients is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * service-discovery-clients is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.logicalclocks.servicediscoveryclient.tracing;
+
+import com.logicalclocks.servicediscoverclient.Builder;
+import com.logicalclocks.servicediscoverclient.ServiceDiscoveryClient;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryException;
+import com.logicalclocks.servicediscoverclient.exceptions.ServiceDiscoveryGenericException;
+import com.logicalclocks.servicediscoverclient.resolvers.AddressFamily;
+import com.logicalclocks.servicediscoverclient.resolvers.DnsResolver;
+import com.logicalclocks.servicediscoverclient.resolvers.Type;
+import com.logicalclocks.servicediscoverclient.service.LookupResult;
+import com.logicalclocks.servicediscoverclient.service.Service;
+import com.logicalclocks.servicediscoverclient.service.ServiceQuery;
+import com.logicalclocks.servicediscoverclient.tracing.Span;
+import com.logicalclocks.servicediscoverclient.tracing.Tracer;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class TestTracer {
+  private final ServiceQuery query = ServiceQuery.of("service0", Collections.emptySet());
+  
+  @Test
+  public void testCacheHitAndMiss() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation ->
+        Collections.singletonList(Service.of("service0", "10.0.0.1", 8080)).stream());
+    ServiceDiscoveryClient client = new Builder(Type.CACHING)
+        .withServiceDiscoveryClient(delegate)
+        .withTracer(tracer)
+        .build();
+    
+    client.getService(query);
+    assertEquals(Arrays.asList("cache.load", "cache.get_service"), tracer.names());
+    assertEquals(false, tracer.spans.get(1).attributes.get("cache.hit"));
+    assertEquals(1L, tracer.spans.get(0).attributes.get("instances"));
+    
+    tracer.spans.clear();
+    client.getService(query);
+    assertEquals(Collections.singletonList("cache.get_service"), tracer.names());
+    assertEquals(true, tracer.spans.get(0).attributes.get("cache.hit"));
+    tracer.assertAllEnded();
+  }
+  
+  @Test
+  public void testLoadIsChildOfLookup() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenAnswer(invocation ->
+        Collections.singletonList(Service.of("service0", "10.0.0.1", 8080)).stream());
+    ServiceDiscoveryClient client = new Builder(Type.CACHING)
+        .withServiceDiscoveryClient(delegate)
+        .withCacheTagIndex()
+        .withTracer(tracer)
+        .build();
+    
+    client.getService(query);
+    assertEquals(Arrays.asList("cache.load", "cache.get_service"), tracer.names());
+    assertSame(tracer.spans.get(1), tracer.spans.get(0).parent);
+    assertNull(tracer.spans.get(1).parent);
+  }
+  
+  @Test
+  public void testFailureRecorded() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenCallRealMethod();
+    when(delegate.getService(any())).thenThrow(new ServiceDiscoveryGenericException("Connection refused"));
+    ServiceDiscoveryClient client = new Builder(Type.CACHING)
+        .withServiceDiscoveryClient(delegate)
+        .withTracer(tracer)
+        .build();
+    
+    assertThrows(ServiceDiscoveryException.class, () -> client.getService(query));
+    RecordedSpan span = tracer.spans.get(tracer.spans.size() - 1);
+    assertEquals("cache.get_service", span.name);
+    assertTrue(span.exception instanceof ServiceDiscoveryGenericException);
+    tracer.assertAllEnded();
+  }
+  
+  @Test
+  public void testNotFoundIsNotAFailure() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    ServiceDiscoveryClient delegate = mock(ServiceDiscoveryClient.class);
+    when(delegate.lookupService(any())).thenReturn(LookupResult.notFound(query));
+    ServiceDiscoveryClient client = new Builder(Type.CACHING)
+        .withServiceDiscoveryClient(delegate)
+        .withTracer(tracer)
+        .build();
+    
+    assertEquals(LookupResult.Status.NOT_FOUND, client.lookupService(query).getStatus());
+    // A miss is an answer, not a failure of the lookup
+    for (RecordedSpan span : tracer.spans) {
+      assertNull(span.exception);
+    }
+    assertEquals(0L, tracer.spans.get(0).attributes.get("instances"));
+    tracer.assertAllEnded();
+  }
+  
+  @Test
+  public void testDnsStages() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    String service = "namenode.service.lc.";
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    when(client.getService(any())).thenCallRealMethod();
+    client.init(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withTracer(tracer));
+    Record[] SRVAnswer = new Record[2];
+    for (int i = 0; i < SRVAnswer.length; i++) {
+      Name target = Name.fromString("node" + i + ".lc.");
+      SRVAnswer[i] = new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, 8080, target);
+      Lookup mockedALookup = mock(Lookup.class);
+      when(mockedALookup.getAnswers()).thenReturn(new Record[]{
+          new ARecord(target, 1, 500, InetAddress.getByName("10.0.0." + i))});
+      when(client.lookup(eq(target), eq(org.xbill.DNS.Type.A))).thenReturn(mockedALookup);
+    }
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getResult()).thenReturn(Lookup.SUCCESSFUL);
+    when(mockedSRVLookup.getAnswers()).thenReturn(SRVAnswer);
+    when(client.lookup(eq(Name.fromString(service)), eq(org.xbill.DNS.Type.SRV))).thenReturn(mockedSRVLookup);
+    
+    assertEquals(2, client.getService(ServiceQuery.of(service, Collections.emptySet())).count());
+    // Targets are resolved as the stream is consumed, after the SRV lookup
+    assertEquals(Arrays.asList("dns.srv_lookup", "dns.address_lookup", "dns.target_lookup", "dns.address_lookup",
+        "dns.target_lookup"), tracer.names());
+    assertEquals("node1.lc.", tracer.spans.get(4).attributes.get("dns.target"));
+    assertEquals("A", tracer.spans.get(3).attributes.get("dns.type"));
+    assertEquals(1L, tracer.spans.get(3).attributes.get("dns.addresses"));
+    RecordedSpan srvLookup = tracer.spans.get(0);
+    assertSame(srvLookup, tracer.spans.get(2).parent);
+    assertSame(tracer.spans.get(2), tracer.spans.get(1).parent);
+    tracer.assertAllEnded();
+  }
+  
+  @Test
+  public void testDnsAttributesOnlyWhenRecording() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    tracer.recording = false;
+    String service = "namenode.service.lc.";
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    when(client.getService(any())).thenCallRealMethod();
+    client.init(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withTracer(tracer));
+    Name target = Name.fromString("node0.lc.");
+    Lookup mockedALookup = mock(Lookup.class);
+    when(mockedALookup.getAnswers()).thenReturn(new Record[]{
+        new ARecord(target, 1, 500, InetAddress.getByName("10.0.0.0"))});
+    when(client.lookup(eq(target), eq(org.xbill.DNS.Type.A))).thenReturn(mockedALookup);
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getResult()).thenReturn(Lookup.SUCCESSFUL);
+    when(mockedSRVLookup.getAnswers()).thenReturn(new Record[]{
+        new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, 8080, target)});
+    when(client.lookup(eq(Name.fromString(service)), eq(org.xbill.DNS.Type.SRV))).thenReturn(mockedSRVLookup);
+    
+    assertEquals(1, client.getService(ServiceQuery.of(service, Collections.emptySet())).count());
+    assertEquals(Arrays.asList("dns.srv_lookup", "dns.address_lookup", "dns.target_lookup"), tracer.names());
+    // The target names are only converted to strings for spans which record them
+    assertFalse(tracer.spans.get(1).attributes.containsKey("dns.target"));
+    assertFalse(tracer.spans.get(1).attributes.containsKey("dns.type"));
+    assertFalse(tracer.spans.get(2).attributes.containsKey("dns.target"));
+    assertFalse(Tracer.noop().startSpan("dns.target_lookup").isRecording());
+    tracer.assertAllEnded();
+  }
+  
+  @Test
+  public void testDnsParentsOnBackgroundThreads() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    String service = "namenode.service.lc.";
+    DnsResolver client = mock(DnsResolver.class);
+    doCallRealMethod().when(client).init(any(Builder.class));
+    doCallRealMethod().when(client).close();
+    when(client.getService(any())).thenCallRealMethod();
+    client.init(new Builder(Type.DNS)
+        .withDnsHost("localhost")
+        .withDnsPort(53)
+        .withDnsAddressFamily(AddressFamily.IPV4_FIRST)
+        .withDnsPrefetchTargets(2)
+        .withTracer(tracer));
+    Record[] SRVAnswer = new Record[3];
+    for (int i = 0; i < SRVAnswer.length; i++) {
+      Name target = Name.fromString("node" + i + ".lc.");
+      SRVAnswer[i] = new SRVRecord(Name.fromString(service), 1, 500, 1, 8080, 8080, target);
+      Lookup mockedALookup = mock(Lookup.class);
+      when(mockedALookup.getAnswers()).thenReturn(new Record[]{
+          new ARecord(target, 1, 500, InetAddress.getByName("10.0.0." + i))});
+      when(client.lookup(eq(target), eq(org.xbill.DNS.Type.A))).thenReturn(mockedALookup);
+      when(client.lookup(eq(target), eq(org.xbill.DNS.Type.AAAA))).thenReturn(mock(Lookup.class));
+    }
+    Lookup mockedSRVLookup = mock(Lookup.class);
+    when(mockedSRVLookup.getResult()).thenReturn(Lookup.SUCCESSFUL);
+    when(mockedSRVLookup.getAnswers()).thenReturn(SRVAnswer);
+    when(client.lookup(eq(Name.fromString(service)), eq(org.xbill.DNS.Type.SRV))).thenReturn(mockedSRVLookup);
+    
+    try {
+      assertEquals(3, client.getService(ServiceQuery.of(service, Collections.emptySet())).count());
+    } finally {
+      client.close();
+    }
+    RecordedSpan srvLookup = tracer.spans.stream().filter(s -> s.name.equals("dns.srv_lookup")).findFirst().get();
+    Thread caller = Thread.currentThread();
+    // Prefetched targets and the AAAA lookups run on the resolver's threads and still link to their stage
+    assertTrue(tracer.spans.stream().anyMatch(s -> s.thread != caller));
+    for (RecordedSpan span : tracer.spans) {
+      if (span.name.equals("dns.target_lookup")) {
+        assertSame(srvLookup, span.parent);
+      } else if (span.name.equals("dns.address_lookup")) {
+        assertEquals("dns.target_lookup", span.parent.name);
+        assertEquals(span.parent.attributes.get("dns.target"), span.attributes.get("dns.target"));
+      }
+    }
+    assertEquals(3, tracer.spans.stream().filter(s -> s.name.equals("dns.target_lookup")).count());
+    assertEquals(6, tracer.spans.stream().filter(s -> s.name.equals("dns.address_lookup")).count());
+    tracer.assertAllEnded();
+  }
+  
+  /**
+   * Records the spans in the order they end
+   */
+  private static class RecordingTracer implements Tracer {
+    private final List<RecordedSpan> spans = new CopyOnWriteArrayList<>();
+    private final List<RecordedSpan> started = new CopyOnWriteArrayList<>();
+    private volatile boolean recording = true;
+    
+    @Override
+    public Span startSpan(String name) {
+      return startSpan(name, null);
+    }
+    
+    @Override
+    public Span startSpan(String name, Span parent) {
+      RecordedSpan span = new RecordedSpan(name, this, (RecordedSpan) parent);
+      started.add(span);
+      return span;
+    }
+    
+    private List<String> names() {
+      return spans.stream().map(s -> s.name).collect(Collectors.toList());
+    }
+    
+    private void assertAllEnded() {
+      started.forEach(span -> assertTrue(span.ended, "Span " + span.name + " not ended"));
+    }
+  }
+  
+  private static class RecordedSpan implements Span {
+    private final String name;
+    private final RecordingTracer tracer;
+    private final RecordedSpan parent;
+    private final Thread thread = Thread.currentThread();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private Throwable exception;
+    private boolean ended;
+    
+    private RecordedSpan(String name, RecordingTracer tracer, RecordedSpan parent) {
+      this.name = name;
+      this.tracer = tracer;
+      this.parent = parent;
+    }
+    
+    @Override
+    public Span setAttribute(String key, String value) {
+      attributes.put(key, value);
+      return this;
+    }
+    
+    @Override
+    public Span setAttribute(String key, long value) {
+      attributes.put(key, value);
+      return this;
+    }
+    
+    @Override
+    public Span setAttribute(String key, boolean value) {
+      attributes.put(key, value);
+      return this;
+    }
+    
+    @Override
+    public boolean isRecording() {
+      return tracer.recording;
+    }
+    
+    @Override
+    public Span addEvent(String name) {
+      return this;
+    }
+    
+    @Override
+    public Span recordException(Throwable exception) {
+      this.exception = exception;
+      return this;
+    }
+    
+    @Override
+    public void end() {
+      assertFalse(ended, "Span " + name + " ended twice");
+      ended = true;
+      tracer.spans.add(this);
+    }
+  }
+}